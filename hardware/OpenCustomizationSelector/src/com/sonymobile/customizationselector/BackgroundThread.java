@@ -0,0 +1,64 @@
+package com.sonymobile.customizationselector;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Shared background looper for disk and binder work started from the main thread, results are posted back to it.
+ * A failing task is logged and does not take the looper or the other tasks down with it.
+ */
+public final class BackgroundThread {
+
+    private static final String TAG = "BackgroundThread";
+
+    private static final Handler MAIN = new Handler(Looper.getMainLooper());
+
+    private static final Object sLock = new Object();
+    private static Handler sHandler;
+
+    private BackgroundThread() {
+    }
+
+    static Handler getHandler() {
+        synchronized (sLock) {
+            if (sHandler == null) {
+                HandlerThread thread = new HandlerThread("CS-Background", Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sHandler = new Handler(thread.getLooper());
+            }
+            return sHandler;
+        }
+    }
+
+    public static void post(Runnable runnable) {
+        getHandler().post(() -> {
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                CSLog.e(TAG, "Background task failed", e);
+            }
+        });
+    }
+
+    /**
+     * Run {@code work} on the background looper and pass its result to {@code onResult} on the main thread.
+     * If {@code work} throws, {@code onResult} gets null.
+     */
+    static <T> void execute(Supplier<T> work, Consumer<T> onResult) {
+        post(() -> {
+            T result = null;
+            try {
+                result = work.get();
+            } catch (RuntimeException e) {
+                CSLog.e(TAG, "Background task failed", e);
+            }
+            final T delivered = result;
+            MAIN.post(() -> onResult.accept(delivered));
+        });
+    }
+}
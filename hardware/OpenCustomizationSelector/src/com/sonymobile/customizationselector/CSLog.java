@@ -4,64 +4,176 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.icu.text.SimpleDateFormat;
-import android.telephony.SubscriptionManager;
-import android.telephony.TelephonyManager;
+import android.os.SystemProperties;
 import android.util.Log;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 public class CSLog {
 
     private static final String PREFIX = "CS-";
-    private static final String LOG_FILE = "/data/user_de/0/com.sonymobile.customizationselector/files/cs.log";
+    private static final String LOG_DIR = "/data/user_de/0/com.sonymobile.customizationselector/files";
+    private static final long FLUSH_TIMEOUT_MS = 1000;
+
+    /** Minimum level to log, one of v, d, i, w, e */
+    private static final String PROP_LOG_LEVEL = "persist.sys.cs.log_level";
+    /** Format of new log segments, text or binary */
+    private static final String PROP_LOG_FORMAT = "persist.sys.cs.log_format";
+
+    private static final LogSink SINK = new LogSink(new LogSegments(new File(LOG_DIR),
+            "binary".equals(SystemProperties.get(PROP_LOG_FORMAT, "text"))));
+    private static final ConcurrentHashMap<String, String> PREFIXED_TAGS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<StringBuilder> FORMAT_BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private static volatile int sMinLevel = readMinLevel();
+
+    static {
+        SystemProperties.addChangeCallback(() -> sMinLevel = readMinLevel());
+        installFlushHooks();
+    }
+
+    private static int readMinLevel() {
+        switch (SystemProperties.get(PROP_LOG_LEVEL, "d").toLowerCase()) {
+            case "v":
+                return Log.VERBOSE;
+            case "i":
+                return Log.INFO;
+            case "w":
+                return Log.WARN;
+            case "e":
+                return Log.ERROR;
+            default:
+                return Log.DEBUG;
+        }
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sMinLevel;
+    }
+
+    /**
+     * Log bulky details like whole tables, off unless the level is set to v. Stored as debug in the log file.
+     */
+    public static void v(String tag, String format, Object arg) {
+        if (isLoggable(Log.VERBOSE))
+            log(Log.VERBOSE, tag, format(format, arg, null, null, null, 1), null);
+    }
 
     public static void d(String tag, String msg) {
-        Log.d(PREFIX + tag, msg);
-        writeLog(PREFIX + tag, msg, "D");
+        if (isLoggable(Log.DEBUG))
+            log(Log.DEBUG, tag, msg, null);
+    }
+
+    /**
+     * Log a message with "{}" placeholders which are only formatted if debug logging is enabled.
+     */
+    public static void d(String tag, String format, Object arg) {
+        if (isLoggable(Log.DEBUG))
+            log(Log.DEBUG, tag, format(format, arg, null, null, null, 1), null);
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(Log.DEBUG))
+            log(Log.DEBUG, tag, format(format, arg1, arg2, null, null, 2), null);
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(Log.DEBUG))
+            log(Log.DEBUG, tag, format(format, arg1, arg2, arg3, null, 3), null);
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3, Object arg4) {
+        if (isLoggable(Log.DEBUG))
+            log(Log.DEBUG, tag, format(format, arg1, arg2, arg3, arg4, 4), null);
+    }
+
+    /**
+     * Log the supplied message, the supplier is only called if debug logging is enabled.
+     */
+    public static void d(String tag, Supplier<String> msg) {
+        if (isLoggable(Log.DEBUG))
+            log(Log.DEBUG, tag, msg.get(), null);
     }
 
     public static void e(String tag, String msg) {
-        Log.e(PREFIX + tag, msg);
-        writeLog(PREFIX + tag, msg, "E");
+        if (isLoggable(Log.ERROR))
+            log(Log.ERROR, tag, msg, null);
     }
 
     public static void e(String tag, String msg, Exception e) {
-        Log.e(PREFIX + tag, msg, e);
-        writeLog(PREFIX + tag, msg + " " + e.toString(), "E");
+        if (isLoggable(Log.ERROR))
+            log(Log.ERROR, tag, msg, e);
     }
 
     public static void i(String tag, String msg) {
-        Log.i(PREFIX + tag, msg);
-        writeLog(PREFIX + tag, msg, "I");
+        if (isLoggable(Log.INFO))
+            log(Log.INFO, tag, msg, null);
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(Log.INFO))
+            log(Log.INFO, tag, format(format, arg1, arg2, null, null, 2), null);
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(Log.INFO))
+            log(Log.INFO, tag, format(format, arg1, arg2, arg3, null, 3), null);
     }
 
     public static void w(String tag, String msg) {
-        Log.w(PREFIX + tag, msg);
-        writeLog(PREFIX + tag, msg, "W");
+        if (isLoggable(Log.WARN))
+            log(Log.WARN, tag, msg, null);
     }
 
-    public static void logSimValues(Context context, String tag) {
-        String subscriberID = "", simOP = "", simOpName = "";
+    private static void log(int level, String tag, String msg, Throwable tr) {
+        String prefixedTag = PREFIXED_TAGS.computeIfAbsent(tag, t -> PREFIX + t);
+        if (tr != null) {
+            Log.println(level, prefixedTag, msg + '\n' + Log.getStackTraceString(tr));
+            msg = msg + " " + tr.toString();
+        } else
+            Log.println(level, prefixedTag, msg);
+        writeLog(prefixedTag, msg, levelToType(level));
+    }
 
-        int defaultSubscriptionId = SubscriptionManager.getDefaultSubscriptionId();
-        TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+    private static String levelToType(int level) {
+        switch (level) {
+            case Log.INFO:
+                return "I";
+            case Log.WARN:
+                return "W";
+            case Log.ERROR:
+                return "E";
+            default:
+                return "D";
+        }
+    }
 
-        if (defaultSubscriptionId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
-            simOP = tm.getSimOperator(defaultSubscriptionId);
-            if (simOP == null)
-                simOP = "";
-            subscriberID = tm.getSubscriberId(defaultSubscriptionId);
-            String simOperatorName = tm.getSimOperatorName(defaultSubscriptionId);
-            simOpName = simOperatorName != null ? simOperatorName.replaceAll("[\n\r]", "").trim() : "";
+    /** Replace the first {@code count} "{}" in {@code format} by the arguments, using a per-thread buffer */
+    private static String format(String format, Object arg1, Object arg2, Object arg3, Object arg4, int count) {
+        StringBuilder sb = FORMAT_BUFFER.get();
+        sb.setLength(0);
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int idx = format.indexOf("{}", start);
+            if (idx < 0)
+                break;
+            sb.append(format, start, idx);
+            sb.append(i == 0 ? arg1 : i == 1 ? arg2 : i == 2 ? arg3 : arg4);
+            start = idx + 2;
         }
-        d(tag, "SimValues: MCC-MNC=" + simOP + ", SP-name=" + simOpName + ", IMSI=" + subscriberID);
+        sb.append(format, start, format.length());
+        return sb.toString();
+    }
+
+    public static void logSimValues(SimInfo simInfo, String tag) {
+        d(tag, "SimValues: MCC-MNC={}, SP-name={}, IMSI={}", simInfo.getSimOperator(), simInfo.sp, simInfo.imsi);
     }
 
     public static void logVersion(Context context, String tag) {
+        if (!isLoggable(Log.DEBUG))
+            return;
         PackageManager packageManager = context.getPackageManager();
         PackageInfo packageInfo = null;
         if (packageManager != null) {
@@ -76,38 +188,26 @@ public class CSLog {
             d(tag, "Version: " + packageInfo.versionName);
     }
 
-    private static boolean sizeCheckDone = false;
+    /**
+     * Write all pending log lines to storage, e.g. before a reboot.
+     * Blocks for at most {@link #FLUSH_TIMEOUT_MS}.
+     */
+    public static void flush() {
+        SINK.flush(FLUSH_TIMEOUT_MS);
+    }
+
+    private static void installFlushHooks() {
+        Runtime.getRuntime().addShutdownHook(new Thread(CSLog::flush, "CSLog-flush"));
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, throwable) -> {
+            writeLog(PREFIX + "CSLog", "Uncaught exception in " + thread.getName() + ": " + throwable, "E");
+            flush();
+            if (handler != null)
+                handler.uncaughtException(thread, throwable);
+        });
+    }
 
     private static void writeLog(String tag, String msg, String type) {
-        File logFile = new File(LOG_FILE);
-        File logDir = logFile.getParentFile();
-        BufferedWriter brw = null;
-        try {
-            if (!logDir.exists() && !logDir.mkdirs())
-                return;
-            if (!logFile.exists()) {
-                if (!logFile.createNewFile())
-                    return;
-            } else if(!sizeCheckDone) {
-                // Delete file if it grows larger than 1 MB
-                if(logFile.length() > 1024 * 1024)
-                    logFile.delete();
-                sizeCheckDone = true;
-            }
-            brw = new BufferedWriter(new FileWriter(logFile, logFile.exists()));
-
-            String timeStamp = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS").format(System.currentTimeMillis());
-            brw.append(timeStamp + " " + type + " " + tag + ": " + msg);
-            brw.newLine();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (brw != null)
-                    brw.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+        SINK.append(type, tag, msg);
     }
 }
@@ -0,0 +1,29 @@
+package com.sonymobile.customizationselector;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancellation flag of one evaluation, checked by the evaluation between its stages.
+ */
+final class CancellationToken {
+
+    private volatile boolean mCancelled;
+
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Abort the evaluation if cancelled.
+     *
+     * @param stage the stage about to start, for the log
+     */
+    void throwIfCancelled(String stage) {
+        if (mCancelled)
+            throw new CancellationException("Cancelled before " + stage);
+    }
+}
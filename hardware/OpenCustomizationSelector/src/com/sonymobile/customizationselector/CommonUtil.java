@@ -11,13 +11,11 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
-import com.sonymobile.customizationselector.Parser.DynamicConfigParser;
 import com.sonymobile.customizationselector.Parser.ModemConfParser;
+import com.sonymobile.customizationselector.Parser.ProviderDatabase;
 
-import java.util.HashMap;
 import java.util.List;
 
-import static com.sonymobile.customizationselector.Parser.XmlConstants.ANY_SIM;
 import static com.sonymobile.customizationselector.Parser.XmlConstants.DEFAULT_CONFIG;
 
 public class CommonUtil {
@@ -32,28 +30,61 @@ public class CommonUtil {
     }
 
     public static PersistableBundle getCarrierBundle(Context context) {
-        String simId = new SimConfigId(context).getId();
+        return getCarrierBundle(context, SimInfo.capture(context));
+    }
+
+    /** Evaluate the bundle for a SIM captured by the caller, which may use it for other purposes too */
+    public static PersistableBundle getCarrierBundle(Context context, SimInfo simInfo) {
+        return getCarrierBundle(context, simInfo, new CancellationToken());
+    }
+
+    /** Evaluate the bundle, stopping between the stages once the token is cancelled */
+    static PersistableBundle getCarrierBundle(Context context, SimInfo simInfo, CancellationToken token) {
+        SimMemo memo = new SimMemo(context);
+        String memoKey = getSimMemoKey(context, simInfo);
+        PersistableBundle cached = memoKey != null ? memo.get(memoKey) : null;
+        if (cached != null) {
+            CSLog.i(TAG, "Returning memoized bundle with sim id {}, modem: {}, config id: {}", cached.getString(Configurator.KEY_SIM_ID),
+                    cached.getString(Configurator.KEY_MODEM), cached.getString(Configurator.KEY_CONFIG_ID));
+            return cached;
+        }
+
+        token.throwIfCancelled("matching");
+        String simId = new SimConfigId(context).getId(simInfo);
 
-        HashMap<String, String> configuration = DynamicConfigParser.getConfiguration(context);
-        String configId = configuration.get(simId);
-        if (TextUtils.isEmpty(configId))
-            configId = configuration.get(ANY_SIM);
+        String configId = ProviderDatabase.get(context).resolveConfigId(simId);
         if (configId == null || DEFAULT_CONFIG.equalsIgnoreCase(configId))
             configId = "";
+        token.throwIfCancelled("the modem lookup");
         String modem = ModemConfParser.parseModemConf(configId);
         if (TextUtils.isEmpty(modem) && isIMSEnabledBySetting(context)) {
             CSLog.i(TAG, "No specific IMS modem found, using a fallback");
             modem = "ir51_ir92_ims";
         }
-        CSLog.i(TAG, String.format("Returning bundle with sim id %s, modem: %s, config id: %s", simId, modem, configId));
+        CSLog.i(TAG, "Returning bundle with sim id {}, modem: {}, config id: {}", simId, modem, configId);
 
         PersistableBundle bundle = new PersistableBundle(3);
         bundle.putString(Configurator.KEY_SIM_ID, simId);
         bundle.putString(Configurator.KEY_MODEM, modem);
         bundle.putString(Configurator.KEY_CONFIG_ID, configId);
+        if (memoKey != null)
+            memo.put(memoKey, bundle);
         return bundle;
     }
 
+    /** Returns a value that changes with everything besides the SIM the carrier bundle depends on */
+    static String getEvaluationStamp(Context context) {
+        return ProviderDatabase.getVersion(context) + "/" + ModemConfParser.getVersion() + "/" + isIMSEnabledBySetting(context);
+    }
+
+    /** Returns the memo key for the SIM, null if it is not usable */
+    private static String getSimMemoKey(Context context, SimInfo simInfo) {
+        if (!simInfo.isValid())
+            return null;
+        return SimMemo.createKey(simInfo.iccid, simInfo.imsi, simInfo.sp, simInfo.gid1, ProviderDatabase.getVersion(context),
+                ModemConfParser.getVersion(), isIMSEnabledBySetting(context));
+    }
+
     public static int getDefaultSubId(Context context) {
         int subscriptionId;
         int defaultDataSubscriptionId = SubscriptionManager.getDefaultDataSubscriptionId();
@@ -109,24 +140,15 @@ public class CommonUtil {
     }
 
     public static boolean isMandatorySimParamsAvailable(Context context, int subId) {
-        TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        return isMandatorySimParamsAvailable(SimInfo.capture(context.getSystemService(TelephonyManager.class), subId));
+    }
 
-        if (tm != null) {
-            String simOperator = tm.getSimOperator(subId);
-            String subscriberId = tm.getSubscriberId(subId);
-            String simSerialNumber = tm.getSimSerialNumber(subId);
-            String simOperatorName = tm.getSimOperatorName(subId);
-            String groupIdLevel1 = tm.getGroupIdLevel1(subId);
-            CSLog.d(TAG, "SimOperator= " + simOperator + ", IMSI= " + subscriberId + ", ICCID = " + simSerialNumber
-                    + ", SPN = " + simOperatorName + ", gid1 = " + groupIdLevel1);
-
-            if (!TextUtils.isEmpty(simOperator) && !TextUtils.isEmpty(subscriberId) && !TextUtils.isEmpty(simSerialNumber)) {
-                CSLog.d(TAG, "isMandatorySimParamsAvailable: true");
-                return true;
-            }
-        }
-        CSLog.d(TAG, "isMandatorySimParamsAvailable: false");
-        return false;
+    public static boolean isMandatorySimParamsAvailable(SimInfo simInfo) {
+        CSLog.d(TAG, () -> "SimOperator= " + simInfo.getSimOperator() + ", IMSI= " + simInfo.imsi + ", ICCID = " + simInfo.iccid
+                + ", SPN = " + simInfo.sp + ", gid1 = " + simInfo.gid1);
+        boolean available = simInfo.isMandatoryAvailable();
+        CSLog.d(TAG, "isMandatorySimParamsAvailable: {}", available);
+        return available;
     }
 
     public static boolean isSIMLoaded(Context context, int subID) {
@@ -0,0 +1,127 @@
+package com.sonymobile.customizationselector;
+
+import android.content.Context;
+import android.os.SystemProperties;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 64-bit fingerprint of the state a configuration is evaluated for: the software and customization versions
+ * and the ICCID of the default SIM.
+ * <p>
+ * The read-only version properties are hashed once per process, they only change with an update which reboots.
+ * The fingerprint of the current default SIM is only updated from subscription change callbacks,
+ * {@link Listener}s are notified on a change.
+ */
+final class ConfigurationFingerprint {
+
+    private static final String TAG = "ConfigurationFingerprint";
+
+    /** Never a fingerprint, for "not known" */
+    static final long NONE = 0;
+
+    private static final String[] PROPERTIES = {
+            "ro.semc.version.cust", "ro.semc.version.cust_revision",
+            "ro.semc.version.sw", "ro.semc.version.sw_revision",
+            "ro.semc.version.opencs"};
+
+    // 64-bit FNV-1a
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    interface Listener {
+        void onFingerprintChanged(long fingerprint);
+    }
+
+    private static final Object sLock = new Object();
+    private static volatile ConfigurationFingerprint sInstance;
+
+    private final Context mContext;
+    private final long mPropertiesHash;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile long mCurrent = NONE;
+
+    private ConfigurationFingerprint(Context context) {
+        mContext = context;
+        long hash = FNV_OFFSET;
+        for (String property : PROPERTIES)
+            hash = hash(hash, SystemProperties.get(property, ""));
+        mPropertiesHash = hash;
+    }
+
+    static ConfigurationFingerprint get(Context context) {
+        ConfigurationFingerprint instance = sInstance;
+        if (instance == null) {
+            synchronized (sLock) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new ConfigurationFingerprint(context.getApplicationContext());
+                    instance.startListening();
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static long hash(long hash, String value) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        // Separator, so moving characters between values changes the hash
+        hash ^= 0xFF;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+    /** Returns the fingerprint for the SIM, without any binder call or property access */
+    long of(SimInfo simInfo) {
+        return of(simInfo.iccid);
+    }
+
+    private long of(String iccid) {
+        long fingerprint = hash(mPropertiesHash, iccid);
+        return fingerprint != NONE ? fingerprint : 1;
+    }
+
+    void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    private void setCurrent(long fingerprint) {
+        long previous = mCurrent;
+        mCurrent = fingerprint;
+        if (previous != fingerprint) {
+            CSLog.d(TAG, "Fingerprint changed: {}", Long.toHexString(fingerprint));
+            for (Listener listener : mListeners)
+                listener.onFingerprintChanged(fingerprint);
+        }
+    }
+
+    /** Register for subscription changes, for the lifetime of the process like the instance */
+    private void startListening() {
+        // The listener delivers on the looper of the thread creating it
+        BackgroundThread.post(() -> {
+            SubscriptionManager subscriptionManager = mContext.getSystemService(SubscriptionManager.class);
+            if (subscriptionManager == null)
+                return;
+            subscriptionManager.addOnSubscriptionsChangedListener(new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    refresh();
+                }
+            });
+        });
+    }
+
+    private void refresh() {
+        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+        int subId = CommonUtil.getDefaultSubId(mContext);
+        String iccid = tm != null && subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID ? tm.getSimSerialNumber(subId) : null;
+        setCurrent(of(iccid != null ? iccid : ""));
+    }
+}
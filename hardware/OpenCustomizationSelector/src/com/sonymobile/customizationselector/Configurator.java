@@ -5,8 +5,6 @@ import android.content.SharedPreferences;
 import android.os.PersistableBundle;
 import android.os.SystemProperties;
 import android.provider.Settings;
-import android.telephony.SubscriptionManager;
-import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import com.sonymobile.miscta.MiscTaException;
 
@@ -22,24 +20,51 @@ public class Configurator {
     public static final String KEY_MODEM = "modem";
     public static final String KEY_SIM_ID = "sim_id";
 
+    // String key of older versions, replaced by the fingerprint
     private static final String OLD_CONFIG_KEY = "config_key";
-    private static final String PROP_CUST = "ro.semc.version.cust";
-    private static final String PROP_CUST_REV = "ro.semc.version.cust_revision";
+    private static final String CONFIG_FINGERPRINT = "config_fingerprint";
     private static final String PROP_SIM_CONFIG_ID = "persist.sys.sim_config_ids";
-    private static final String PROP_SW = "ro.semc.version.sw";
-    private static final String PROP_SW_REV = "ro.semc.version.sw_revision";
-    private static final String PROP_CS_VERSION = "ro.semc.version.opencs";
     public static final String PROP_TA_AC_VERSION = "ro.semc.version.cust.active";
 
-    private static final int TA_AC_VERSION = 2212;
+    static final int TA_AC_VERSION = 2212;
+
+    private static volatile SharedPreferences sPreferences;
+    // Result needing a reboot, from the service to the reboot dialog
+    private static volatile EvaluationResult sPendingResult;
 
     private final PersistableBundle mBundle;
     private final Context mContext;
-    private String mConfigId = null, mModem = "";
+    private SimInfo mSimInfo;
+    private EvaluationResult mResult;
 
     public Configurator(Context context, PersistableBundle bundle) {
+        this(context, bundle, null);
+    }
+
+    /** @param simInfo SIM the bundle was evaluated for, captured on first use if null */
+    public Configurator(Context context, PersistableBundle bundle, SimInfo simInfo) {
         mContext = context;
         mBundle = bundle;
+        mSimInfo = simInfo;
+    }
+
+    private static final ConfigurationFingerprint.Listener PENDING_RESULT_INVALIDATOR = fingerprint -> {
+        EvaluationResult result = sPendingResult;
+        if (result != null && result.fingerprint != fingerprint) {
+            CSLog.d(TAG, "Configuration changed, dropping pending result");
+            sPendingResult = null;
+        }
+    };
+
+    static void setPendingResult(Context context, EvaluationResult result) {
+        sPendingResult = result;
+        ConfigurationFingerprint.get(context).addListener(PENDING_RESULT_INVALIDATOR);
+    }
+
+    /** Returns the result of the last evaluation if it needs a reboot and was computed for the SIM, else null */
+    static EvaluationResult getPendingResult(SimInfo simInfo) {
+        EvaluationResult result = sPendingResult;
+        return result != null && result.simInfo.equals(simInfo) ? result : null;
     }
 
     public static void clearMiscTaConfigId() {
@@ -47,37 +72,22 @@ public class Configurator {
         MiscTA.write(TA_AC_VERSION, "");
     }
 
-    private boolean anythingChangedSinceLastEvaluation() {
-        String oldKey = getPreferences().getString(OLD_CONFIG_KEY, "");
-        String key = createCurrentConfigurationKey();
-        if (key.equals(oldKey)) {
-            CSLog.d(TAG, "Unchanged key=" + key);
-            return false;
-        } else {
-            CSLog.d(TAG, "Key changed: " + key + "!=" + oldKey);
-            return true;
-        }
+    private void saveConfigurationKey(long fingerprint) {
+        getPreferences().edit().remove(OLD_CONFIG_KEY).putLong(CONFIG_FINGERPRINT, fingerprint).apply();
     }
 
-    public void saveConfigurationKey(String configKey) {
-        getPreferences().edit().putString(OLD_CONFIG_KEY, configKey).apply();
+    /** Save the fingerprint of the result, marking its state as handled */
+    public void saveConfigurationKey(EvaluationResult result) {
+        saveConfigurationKey(result.fingerprint);
+        CSLog.d(TAG, "saveConfigKey - key saved: " + Long.toHexString(result.fingerprint));
     }
 
     public void saveConfigurationKey() {
-        String newKey = createCurrentConfigurationKey();
-        saveConfigurationKey(newKey);
-        CSLog.d(TAG, "saveConfigKey - key saved: " + newKey);
+        saveConfigurationKey(getResult());
     }
 
     public void clearConfigurationKey() {
-        saveConfigurationKey("null");
-    }
-
-    private String createCurrentConfigurationKey() {
-        String status = SystemProperties.get(PROP_CUST, "") + SystemProperties.get(PROP_CUST_REV, "") +
-                SystemProperties.get(PROP_SW, "") + SystemProperties.get(PROP_SW_REV, "") +
-                SystemProperties.get(PROP_CS_VERSION, "") + getIccid();
-        return status;
+        saveConfigurationKey(ConfigurationFingerprint.NONE);
     }
 
     private String evaluateCarrierConfigId(String ID) {
@@ -93,14 +103,6 @@ public class Configurator {
         return new ModemConfiguration(getPreferences()).getModemConfigurationNeeded(modem);
     }
 
-    private String getIccid() {
-        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
-        int defaultSubId = CommonUtil.getDefaultSubId(mContext);
-        String simSerialNumber = (tm == null || defaultSubId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) ? "" : tm.getSimSerialNumber(defaultSubId);
-        CSLog.d(TAG, "getIccid: " + simSerialNumber);
-        return simSerialNumber != null ? simSerialNumber : "";
-    }
-
     private static Context getTargetContext(Context context) {
         if (CommonUtil.isDirectBootEnabled()) {
             CSLog.d(TAG, "Direct Boot is enabled. Use device encrypted storage.");
@@ -111,41 +113,76 @@ public class Configurator {
     }
 
     public static SharedPreferences getPreferences(Context context) {
-        return getTargetContext(context).getSharedPreferences(PREF_PKG, Context.MODE_PRIVATE);
+        // The storage never changes at runtime, so neither does the instance
+        SharedPreferences preferences = sPreferences;
+        if (preferences == null) {
+            preferences = getTargetContext(context).getSharedPreferences(PREF_PKG, Context.MODE_PRIVATE);
+            sPreferences = preferences;
+        }
+        return preferences;
+    }
+
+    /** File backing {@link #getPreferences(Context)} */
+    static File getPreferencesFile(Context context) {
+        return new File(getTargetContext(context).getDataDir(), "shared_prefs/" + PREF_PKG + ".xml");
     }
 
     public SharedPreferences getPreferences() {
         return getPreferences(mContext);
     }
 
-    public boolean isNewConfigurationNeeded() {
-        if (anythingChangedSinceLastEvaluation()) {
+    /**
+     * Compare the current state with the one of the last applied evaluation and compute what is to be applied.
+     * The SIM is captured once if not given, the result is kept for the methods without a result parameter.
+     */
+    public EvaluationResult evaluate() {
+        if (mSimInfo == null)
+            mSimInfo = SimInfo.capture(mContext);
+        long previous = getPreferences().getLong(CONFIG_FINGERPRINT, ConfigurationFingerprint.NONE);
+        long fingerprint = ConfigurationFingerprint.get(mContext).of(mSimInfo);
+        String simID = "", modem = "", configId = null;
+        if (fingerprint == previous) {
+            CSLog.d(TAG, "Unchanged key=" + Long.toHexString(fingerprint));
+            CSLog.d(TAG, "isNewConfigurationNeeded - ConfigKey not updated, no need to evaluate");
+        } else {
+            CSLog.d(TAG, "Key changed: " + Long.toHexString(fingerprint) + "!=" + Long.toHexString(previous));
             if (mBundle != null) {
-                String simID = mBundle.getString(KEY_SIM_ID, "");
+                simID = mBundle.getString(KEY_SIM_ID, "");
                 SystemProperties.set(PROP_SIM_CONFIG_ID, simID);
 
-                mModem = evaluateModem(mBundle.getString(KEY_MODEM, ""));
-                mConfigId = evaluateCarrierConfigId(mBundle.getString(KEY_CONFIG_ID));
+                modem = evaluateModem(mBundle.getString(KEY_MODEM, ""));
+                configId = evaluateCarrierConfigId(mBundle.getString(KEY_CONFIG_ID));
 
                 CSLog.d(TAG, "isNewConfigurationNeeded - Sim Id: " + simID);
-                CSLog.d(TAG, "isNewConfigurationNeeded - Modem: " + mModem);
-                CSLog.d(TAG, "isNewConfigurationNeeded - Carrier Config Id: " + mConfigId);
+                CSLog.d(TAG, "isNewConfigurationNeeded - Modem: " + modem);
+                CSLog.d(TAG, "isNewConfigurationNeeded - Carrier Config Id: " + configId);
             }
-            return mConfigId != null || !TextUtils.isEmpty(mModem);
-        } else {
-            CSLog.d(TAG, "isNewConfigurationNeeded - ConfigKey not updated, no need to evaluate");
-            return false;
         }
+        mResult = new EvaluationResult(mSimInfo, fingerprint, previous, simID, modem, configId);
+        return mResult;
     }
 
-    public void set() {
-        CSLog.d(TAG, String.format("Set() - modem = '%s' - carrier config id = '%s'", mModem, mConfigId));
-        if (anythingChangedSinceLastEvaluation()) {
-            saveConfigurationKey();
-            if (mConfigId != null)
-                MiscTA.write(TA_AC_VERSION, mConfigId);
-            if (!TextUtils.isEmpty(mModem))
-                new ModemConfiguration(getPreferences()).setConfiguration(mModem);
+    private EvaluationResult getResult() {
+        return mResult != null ? mResult : evaluate();
+    }
+
+    public boolean isNewConfigurationNeeded() {
+        return evaluate().isNewConfigurationNeeded();
+    }
+
+    /** Apply the result: save its key, write the carrier config id and switch the modem if needed */
+    public void set(EvaluationResult result) {
+        CSLog.d(TAG, String.format("Set() - modem = '%s' - carrier config id = '%s'", result.modem, result.configId));
+        if (result.isChanged()) {
+            saveConfigurationKey(result);
+            if (result.configId != null)
+                MiscTA.write(TA_AC_VERSION, result.configId);
+            if (!TextUtils.isEmpty(result.modem))
+                new ModemConfiguration(getPreferences()).setConfiguration(result.modem);
         }
     }
+
+    public void set() {
+        set(getResult());
+    }
 }
@@ -5,6 +5,7 @@ import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
 import android.app.StatusBarManager;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
@@ -23,6 +24,7 @@ public class CustomizationSelectorActivity extends Activity implements OnClickLi
 
     private AlertDialog mAlertDialog;
     private Configurator mConfigurator;
+    private EvaluationResult mResult;
     private UserPresentReceiver mUserPresentReceiver;
 
     private void disableActivity() {
@@ -56,18 +58,64 @@ public class CustomizationSelectorActivity extends Activity implements OnClickLi
     public void onClick(DialogInterface dialog, int which) {
         CSLog.d(TAG, "onClick - Reboot");
         disableActivity();
-        mConfigurator.set();
-        Log.i(getString(R.string.app_name), getString(R.string.customization_restart_desc_txt));
-        getSystemService(PowerManager.class).reboot(getString(R.string.reboot_reason));
+        Configurator configurator = mConfigurator;
+        EvaluationResult result = mResult;
+        Context context = getApplicationContext();
+        // Writes MiscTA and waits for the log to be flushed, on its own thread so it is not queued behind
+        // other background work
+        new Thread(() -> {
+            configurator.set(result);
+            Log.i(context.getString(R.string.app_name), context.getString(R.string.customization_restart_desc_txt));
+            CSLog.flush();
+            context.getSystemService(PowerManager.class).reboot(context.getString(R.string.reboot_reason));
+        }, "CS-Reboot").start();
+    }
+
+    /** Outcome of the evaluation done in the background */
+    private static final class Evaluation {
+        final Configurator configurator;
+        final EvaluationResult result;
+        final boolean showDialog;
+
+        Evaluation(Configurator configurator, EvaluationResult result, boolean showDialog) {
+            this.configurator = configurator;
+            this.result = result;
+            this.showDialog = showDialog;
+        }
     }
 
     @Override
     protected void onCreate(Bundle bundle) {
         super.onCreate(bundle);
         CSLog.d(TAG, "onCreate()");
-        mConfigurator = new Configurator(this, CommonUtil.getCarrierBundle(this));
+        // This is the HOME activity at boot, the SIM queries and a slow /cache must not block the main thread
+        Context context = getApplicationContext();
+        BackgroundThread.execute(() -> evaluate(context), this::onEvaluated);
+    }
 
-        if (CommonUtil.isSIMLoaded(this, CommonUtil.getDefaultSubId(this)) && mConfigurator.isNewConfigurationNeeded()) {
+    private static Evaluation evaluate(Context context) {
+        SimInfo simInfo = SimInfo.capture(context);
+        EvaluationResult result = Configurator.getPendingResult(simInfo);
+        Configurator configurator;
+        if (result != null) {
+            CSLog.d(TAG, "Using the result of the service: " + result);
+            configurator = new Configurator(context, null, simInfo);
+        } else {
+            configurator = new Configurator(context, CommonUtil.getCarrierBundle(context, simInfo), simInfo);
+            result = configurator.evaluate();
+        }
+        return new Evaluation(configurator, result,
+                CommonUtil.isSIMLoaded(context, simInfo.subId) && result.isNewConfigurationNeeded());
+    }
+
+    /** @param evaluation null if evaluating failed, then the real launcher is started */
+    private void onEvaluated(Evaluation evaluation) {
+        if (isFinishing() || isDestroyed())
+            return;
+
+        if (evaluation != null && evaluation.showDialog) {
+            mConfigurator = evaluation.configurator;
+            mResult = evaluation.result;
             disableUI();
             setFinishOnTouchOutside(false);
             setupUserPresent();
@@ -94,7 +142,9 @@ public class CustomizationSelectorActivity extends Activity implements OnClickLi
     @Override
     protected void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
-        startDialog();
+        // Before the evaluation finished it decides whether to show the dialog
+        if (mAlertDialog != null)
+            startDialog();
     }
 
     private void setupUserPresent() {
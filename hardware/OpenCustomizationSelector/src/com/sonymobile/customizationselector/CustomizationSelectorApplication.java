@@ -0,0 +1,12 @@
+package com.sonymobile.customizationselector;
+
+import android.app.Application;
+
+public class CustomizationSelectorApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StrictModeAudit.install();
+    }
+}
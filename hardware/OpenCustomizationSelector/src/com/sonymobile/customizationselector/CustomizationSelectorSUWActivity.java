@@ -84,8 +84,13 @@ public class CustomizationSelectorSUWActivity extends Activity {
                     return;
                 case MSG_REBOOT:
                     CSLog.d(CustomizationSelectorSUWActivity.TAG, "Configuration changed - rebooting device...");
-                    Log.i(customizationSelectorSUWActivity.getString(R.string.app_name), customizationSelectorSUWActivity.getString(R.string.customization_restart_desc_txt));
-                    customizationSelectorSUWActivity.getSystemService(PowerManager.class).reboot(customizationSelectorSUWActivity.getApplicationContext().getString(R.string.reboot_reason));
+                    Context context = customizationSelectorSUWActivity.getApplicationContext();
+                    Log.i(context.getString(R.string.app_name), context.getString(R.string.customization_restart_desc_txt));
+                    // Waits for the log to be flushed, not queued behind other background work
+                    new Thread(() -> {
+                        CSLog.flush();
+                        context.getSystemService(PowerManager.class).reboot(context.getString(R.string.reboot_reason));
+                    }, "CS-Reboot").start();
                     return;
                 default:
                     return;
@@ -120,19 +125,31 @@ public class CustomizationSelectorSUWActivity extends Activity {
     }
 
     public void handleConfiguration() {
-        int msg;
-
-        StateHandler.getStateHandler(this).removeCallbacksAndMessages(null);
-        Configurator configurator = new Configurator(getApplicationContext(), CommonUtil.getCarrierBundle(this));
-        if (configurator.isNewConfigurationNeeded()) {
-            configurator.set();
-            msg = MSG_REBOOT;
-        } else {
-            configurator.saveConfigurationKey();
-            msg = MSG_CONTINUE;
-        }
-        CSLog.d(TAG, "handleConfiguration - reboot? " + (msg == MSG_REBOOT));
-        StateHandler.getStateHandler(this).sendEmptyMessage(msg);
+        StateHandler handler = StateHandler.getStateHandler(this);
+        handler.removeCallbacksAndMessages(null);
+        Context context = getApplicationContext();
+        // Evaluating does binder calls and file reads, the result is handled on the main thread
+        BackgroundThread.post(() -> {
+            int msg;
+            try {
+                SimInfo simInfo = SimInfo.capture(context);
+                Configurator configurator = new Configurator(context, CommonUtil.getCarrierBundle(context, simInfo), simInfo);
+                EvaluationResult result = configurator.evaluate();
+                if (result.isNewConfigurationNeeded()) {
+                    configurator.set(result);
+                    msg = MSG_REBOOT;
+                } else {
+                    configurator.saveConfigurationKey(result);
+                    msg = MSG_CONTINUE;
+                }
+            } catch (RuntimeException e) {
+                // The timeout was removed, so continue rather than leaving the setup wizard stuck
+                CSLog.e(TAG, "handleConfiguration failed", e);
+                msg = MSG_CONTINUE;
+            }
+            CSLog.d(TAG, "handleConfiguration - reboot? " + (msg == MSG_REBOOT));
+            handler.sendEmptyMessage(msg);
+        });
     }
 
     public boolean isSimWorking() {
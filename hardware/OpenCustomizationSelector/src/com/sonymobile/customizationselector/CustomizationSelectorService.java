@@ -1,57 +1,90 @@
 package com.sonymobile.customizationselector;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.IBinder;
+import android.os.PersistableBundle;
 import android.os.UserManager;
 import android.provider.Settings.Secure;
 
-public class CustomizationSelectorService extends IntentService {
+import java.util.concurrent.CancellationException;
+
+/**
+ * Runs evaluations requested by intent on the {@link EvaluationScheduler}, stopping itself when they are done.
+ */
+public class CustomizationSelectorService extends Service {
 
     private static final String TAG = "CustomizationSelectorService";
     public static final String EVALUATE_ACTION = "evaluate_action";
 
-    public CustomizationSelectorService() {
-        super(CustomizationSelectorService.class.getName());
+    public static void evaluateCarrierBundle(Context context) {
+        // Captured once and shared by every step of the evaluation
+        evaluateCarrierBundle(context, SimInfo.capture(context), new CancellationToken());
     }
 
-    public static synchronized void evaluateCarrierBundle(Context context) {
+    /**
+     * Evaluate for a SIM captured by the caller, see {@link EvaluationScheduler}.
+     * Stops between stages once the token is cancelled.
+     */
+    static void evaluateCarrierBundle(Context context, SimInfo simInfo, CancellationToken token) {
         try {
-            CSLog.logVersion(context, TAG);
-            CSLog.logSimValues(context, TAG);
+            PersistableBundle bundle = evaluate(context, simInfo, token);
+            // Outside of the serialized evaluation, so a newer request or a stopped job can abort it
+            if (bundle != null && CommonUtil.isDualSim(context)) {
+                token.throwIfCancelled("evaluating all slots");
+                SlotEvaluator.evaluateAll(context, simInfo, bundle, token);
+            }
+        } catch (CancellationException e) {
+            CSLog.i(TAG, "evaluateCarrierBundle - " + e.getMessage());
+        } catch (Exception e) {
+            CSLog.e(TAG, "evaluateCarrierBundle - ERROR: ", e);
+        }
+    }
+
+    /** Returns the evaluated bundle, null if it could not be evaluated */
+    private static synchronized PersistableBundle evaluate(Context context, SimInfo simInfo, CancellationToken token) {
+        CSLog.logVersion(context, TAG);
+        CSLog.logSimValues(simInfo, TAG);
 
-            if (!CommonUtil.isDirectBootEnabled()) {
-                UserManager userManager = context.getSystemService(UserManager.class);
-                if (userManager != null && !userManager.isUserUnlocked()) {
-                    CSLog.d(TAG, "user is locked. private app data storage is not available.");
-                    return;
-                }
+        if (!CommonUtil.isDirectBootEnabled()) {
+            UserManager userManager = context.getSystemService(UserManager.class);
+            if (userManager != null && !userManager.isUserUnlocked()) {
+                CSLog.d(TAG, "user is locked. private app data storage is not available.");
+                return null;
             }
+        }
 
-            Configurator configurator = new Configurator(context, CommonUtil.getCarrierBundle(context));
-            if (configurator.isNewConfigurationNeeded()) {
-                context.getPackageManager().setComponentEnabledSetting(new ComponentName(context, CustomizationSelectorActivity.class),
-                        PackageManager.COMPONENT_ENABLED_STATE_ENABLED, PackageManager.COMPONENT_ENABLED_STATE_ENABLED);
+        // On DSDS the slot may have been evaluated already, e.g. before the default data SIM was switched
+        PersistableBundle bundle = SlotEvaluator.get(context, simInfo);
+        if (bundle == null)
+            bundle = CommonUtil.getCarrierBundle(context, simInfo, token);
+        token.throwIfCancelled("applying the configuration");
+        Configurator configurator = new Configurator(context, bundle, simInfo);
+        EvaluationResult result = configurator.evaluate();
+        // Handed to the reboot dialog, so it applies what was checked here
+        Configurator.setPendingResult(context, result.isNewConfigurationNeeded() ? result : null);
+        if (result.isNewConfigurationNeeded()) {
+            context.getPackageManager().setComponentEnabledSetting(new ComponentName(context, CustomizationSelectorActivity.class),
+                    PackageManager.COMPONENT_ENABLED_STATE_ENABLED, PackageManager.COMPONENT_ENABLED_STATE_ENABLED);
 
-                if (isUserSetupComplete(context)) {
-                    CSLog.d(TAG, "evaluateCarrierBundle - Need to reboot, starting dialog.");
-                    Intent intent = new Intent(Intent.ACTION_MAIN, null)
-                        .addCategory(Intent.CATEGORY_HOME)
-                        .addFlags(Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED | Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
-                    context.startActivity(intent);
-                } else
-                    CSLog.d(TAG, "evaluateCarrierBundle - Need to reboot, user setup not complete");
-            } else {
-                configurator.saveConfigurationKey();
-                CSLog.d(TAG, "evaluateCarrierBundle - No new configuration.");
+            if (isUserSetupComplete(context)) {
+                CSLog.d(TAG, "evaluateCarrierBundle - Need to reboot, starting dialog.");
+                Intent intent = new Intent(Intent.ACTION_MAIN, null)
+                    .addCategory(Intent.CATEGORY_HOME)
+                    .addFlags(Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED | Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+                context.startActivity(intent);
+            } else
+                CSLog.d(TAG, "evaluateCarrierBundle - Need to reboot, user setup not complete");
+        } else {
+            configurator.saveConfigurationKey(result);
+            CSLog.d(TAG, "evaluateCarrierBundle - No new configuration.");
 
-                ModemSwitcher.reApplyModem(context);
-            }
-        } catch (Exception e) {
-            CSLog.e(TAG, "evaluateCarrierBundle - ERROR: ", e);
+            ModemSwitcher.reApplyModem(context);
         }
+        return bundle;
     }
 
     private static boolean isUserSetupComplete(Context context) {
@@ -59,8 +92,16 @@ public class CustomizationSelectorService extends IntentService {
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
         if (EVALUATE_ACTION.equals(intent != null ? intent.getAction() : ""))
-            evaluateCarrierBundle(this);
+            EvaluationScheduler.request(this, "service", () -> stopSelf(startId));
+        else
+            stopSelf(startId);
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 }
@@ -9,7 +9,6 @@ import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.provider.Settings.Global;
 
 public class DSDataSubContentJob extends JobService {
@@ -22,21 +21,7 @@ public class DSDataSubContentJob extends JobService {
     private static final JobInfo JOB_INFO;
     private static final Uri MULTI_SIM_DATA_URI = Global.getUriFor("multi_sim_data_call");
     private static final String TAG = "DSDataSubContentJob";
-    private ConfigurationTask mConfigurationTask;
-
-    private static class ConfigurationTask extends AsyncTask<Void, Context, Void> {
-        private final Context mContext;
-
-        public ConfigurationTask(Context context) {
-            mContext = context;
-        }
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-            CustomizationSelectorService.evaluateCarrierBundle(mContext);
-            return null;
-        }
-    }
+    private EvaluationScheduler.Ticket mTicket;
 
     static {
         Builder builder = new Builder(JOB_ID, new ComponentName("com.sonymobile.customizationselector", DSDataSubContentJob.class.getName()));
@@ -51,21 +36,17 @@ public class DSDataSubContentJob extends JobService {
 
     public boolean onStartJob(final JobParameters jobParameters) {
         CSLog.d(TAG, "onStartJob");
-        mConfigurationTask = new ConfigurationTask(this) {
-            @Override
-            protected void onPostExecute(Void unused) {
-                DSDataSubContentJob.this.jobFinished(jobParameters, false);
-                DSDataSubContentJob.scheduleJob(DSDataSubContentJob.this);
-            }
-        };
-        mConfigurationTask.execute();
+        mTicket = EvaluationScheduler.request(this, "data_sub_changed", () -> {
+            jobFinished(jobParameters, false);
+            scheduleJob(this);
+        });
         return true;
     }
 
     public boolean onStopJob(JobParameters jobParameters) {
         CSLog.d(TAG, "onStopJob");
-        if (mConfigurationTask != null)
-            mConfigurationTask.cancel(true);
+        if (mTicket != null)
+            mTicket.cancel();
         return true;
     }
 }
@@ -0,0 +1,171 @@
+package com.sonymobile.customizationselector;
+
+import android.app.Activity;
+import android.content.ClipData;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.view.View;
+import android.widget.Toast;
+import androidx.core.content.FileProvider;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Bundles the CS log, the modem switcher files, the CS preferences and the MiscTA units into one zip.
+ * <p>
+ * Everything is streamed through a fixed-size buffer, so memory use does not depend on the size of the log.
+ */
+final class DiagnosticsExporter {
+
+    private static final String TAG = "DiagnosticsExporter";
+
+    static final String AUTHORITY = "com.sonymobile.customizationselector.fileprovider";
+    private static final String EXPORT_DIR = "export";
+    private static final String EXPORT_FILE = "cs_diagnostics.zip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int[] TA_UNITS = {Configurator.TA_AC_VERSION, ModemSwitcher.TA_FOTA_INTERNAL,
+            ModemSwitcher.MODEM_COMMAND_UNIT};
+
+    private final Context mContext;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    DiagnosticsExporter(Context context) {
+        mContext = context;
+    }
+
+    /** Export in the background and offer the bundle to share, the button is disabled meanwhile */
+    static void exportAndShare(Activity activity, View button) {
+        button.setEnabled(false);
+        BackgroundThread.post(() -> {
+            DiagnosticsExporter exporter = new DiagnosticsExporter(activity.getApplicationContext());
+            File zipFile = null;
+            try {
+                zipFile = exporter.export();
+            } catch (IOException e) {
+                CSLog.e(TAG, "Export failed", e);
+            }
+            final File result = zipFile;
+            activity.runOnUiThread(() -> {
+                button.setEnabled(true);
+                if (activity.isDestroyed())
+                    return;
+                if (result == null)
+                    Toast.makeText(activity, R.string.export_failed, Toast.LENGTH_SHORT).show();
+                else
+                    activity.startActivity(exporter.createShareIntent(result));
+            });
+        });
+    }
+
+    /**
+     * Write the bundle to the cache dir, replacing a previous one. Must not be called on the main thread.
+     *
+     * @return the zip file
+     */
+    File export() throws IOException {
+        CSLog.flush();
+        File dir = new File(mContext.getCacheDir(), EXPORT_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create " + dir);
+        File zipFile = new File(dir, EXPORT_FILE);
+        File tmpFile = new File(dir, EXPORT_FILE + ".tmp");
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE))) {
+            WritableByteChannel out = Channels.newChannel(zip);
+            File logDir = mContext.createDeviceProtectedStorageContext().getFilesDir();
+            zip.putNextEntry(new ZipEntry("cs.log"));
+            try (InputStream log = LogSegments.openLogicalStream(logDir)) {
+                copy(Channels.newChannel(log), out);
+            }
+            zip.closeEntry();
+            addFile(zip, out, new File(ModemSwitcher.MODEM_STATUS_FILE), "modem_switcher_status");
+            addFile(zip, out, new File(ModemSwitcher.MODEM_REPORT_FILE), "modem_switcher_report");
+            addFile(zip, out, Configurator.getPreferencesFile(mContext), "CS.xml");
+            addMiscTA(zip);
+        }
+        if (!tmpFile.renameTo(zipFile))
+            throw new IOException("Failed to rename " + tmpFile);
+        CSLog.i(TAG, "Exported {} ({} bytes)", zipFile, zipFile.length());
+        return zipFile;
+    }
+
+    /** Returns a chooser sharing the given bundle through the FileProvider */
+    Intent createShareIntent(File zipFile) {
+        Uri uri = FileProvider.getUriForFile(mContext, AUTHORITY, zipFile);
+        Intent intent = new Intent(Intent.ACTION_SEND)
+                .setType("application/zip")
+                .putExtra(Intent.EXTRA_STREAM, uri)
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        intent.setClipData(ClipData.newRawUri(EXPORT_FILE, uri));
+        return Intent.createChooser(intent, mContext.getString(R.string.export_diagnostics));
+    }
+
+    private void addFile(ZipOutputStream zip, WritableByteChannel out, File file, String name) throws IOException {
+        if (!file.isFile()) {
+            CSLog.d(TAG, "Skipping missing {}", file);
+            return;
+        }
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(file.lastModified());
+        zip.putNextEntry(entry);
+        try (FileChannel in = new FileInputStream(file).getChannel()) {
+            long position = 0, size = in.size();
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0)
+                    break;
+                position += n;
+            }
+        } catch (IOException e) {
+            // A partially readable file is still useful, keep the bundle going
+            CSLog.w(TAG, "Failed to read " + file + ": " + e);
+        }
+        zip.closeEntry();
+    }
+
+    private void addMiscTA(ZipOutputStream zip) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int unit : TA_UNITS) {
+            sb.append(unit).append(": ");
+            try {
+                byte[] data = MiscTA.read(unit);
+                if (data == null)
+                    sb.append("<null>");
+                else {
+                    sb.append('"').append(new String(data, StandardCharsets.UTF_8)).append("\" [");
+                    for (byte b : data)
+                        sb.append(String.format("%02x", b & 0xFF));
+                    sb.append(']');
+                }
+            } catch (RuntimeException e) {
+                sb.append("<error: ").append(e).append('>');
+            }
+            sb.append('\n');
+        }
+        zip.putNextEntry(new ZipEntry("miscta.txt"));
+        zip.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    private void copy(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        mBuffer.clear();
+        while (in.read(mBuffer) >= 0 || mBuffer.position() > 0) {
+            mBuffer.flip();
+            out.write(mBuffer);
+            mBuffer.compact();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.sonymobile.customizationselector;
+
+import android.text.TextUtils;
+
+/**
+ * Immutable outcome of {@link Configurator#evaluate()}: what is to be applied and the state it was computed for.
+ * <p>
+ * Applying a result writes exactly what was checked, even if the SIM or properties change in between.
+ */
+public final class EvaluationResult {
+
+    /** SIM the result was computed for */
+    public final SimInfo simInfo;
+    /** Fingerprint of the state, see {@link ConfigurationFingerprint} */
+    public final long fingerprint;
+    /** Fingerprint saved by the last applied evaluation, {@link ConfigurationFingerprint#NONE} if there is none */
+    public final long previousFingerprint;
+    /** sim_config_id of the bundle, empty if unknown */
+    public final String simId;
+    /** Modem configuration to switch to, empty if none */
+    public final String modem;
+    /** Carrier config id to write, null if unchanged */
+    public final String configId;
+
+    EvaluationResult(SimInfo simInfo, long fingerprint, long previousFingerprint, String simId, String modem, String configId) {
+        this.simInfo = simInfo;
+        this.fingerprint = fingerprint;
+        this.previousFingerprint = previousFingerprint;
+        this.simId = simId;
+        this.modem = modem;
+        this.configId = configId;
+    }
+
+    /** Whether anything changed since the last applied evaluation */
+    public boolean isChanged() {
+        return fingerprint != previousFingerprint;
+    }
+
+    /** Whether applying needs a reboot, i.e. the modem or carrier config id changes */
+    public boolean isNewConfigurationNeeded() {
+        return isChanged() && (configId != null || !TextUtils.isEmpty(modem));
+    }
+
+    @Override
+    public String toString() {
+        return "EvaluationResult{simId=" + simId + ", modem=" + modem + ", configId=" + configId + ", changed=" + isChanged() + "}";
+    }
+}
@@ -0,0 +1,245 @@
+package com.sonymobile.customizationselector;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The app's evaluation executor, folding bursts of requests (boot, SIM swap, DSDS data switch) into single evaluations.
+ * <p>
+ * Requests are keyed by the SIM and everything else the result depends on, captured on the intake thread.
+ * A request waits a short window for others with the same key to join. It is dropped if an evaluation with the
+ * same key is running or has just finished. A request with a new key makes older evaluations obsolete, they are
+ * cancelled and their requesters wait for the new one. Evaluations run one at a time on the evaluation thread
+ * and check their {@link CancellationToken} between stages.
+ */
+final class EvaluationScheduler {
+
+    private static final String TAG = "EvaluationScheduler";
+
+    /** Time a request waits for others to join */
+    private static final long WINDOW_MS = 500;
+    /** Time after an evaluation during which a request with the same key is redundant */
+    private static final long REDUNDANT_MS = 2000;
+
+    // Captures keys and runs the window timers, so requests are handled while an evaluation runs
+    private static final ScheduledThreadPoolExecutor INTAKE = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "CS-Intake"));
+    private static final ExecutorService EVALUATOR = Executors.newSingleThreadExecutor(r -> new Thread(r, "CS-Evaluate"));
+
+    private static final Object sLock = new Object();
+    private static Evaluation sPending, sRunning;
+    private static Key sLastKey;
+    private static long sLastDone;
+
+    private static final AtomicInteger sRequested = new AtomicInteger();
+    private static final AtomicInteger sEvaluated = new AtomicInteger();
+    private static final AtomicInteger sCoalesced = new AtomicInteger();
+    private static final AtomicInteger sDropped = new AtomicInteger();
+    private static final AtomicInteger sCancelled = new AtomicInteger();
+
+    private static final class Key {
+        final SimInfo simInfo;
+        final String stamp;
+
+        Key(Context context) {
+            simInfo = SimInfo.capture(context);
+            stamp = CommonUtil.getEvaluationStamp(context);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return simInfo.equals(other.simInfo) && stamp.equals(other.stamp);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(simInfo, stamp);
+        }
+    }
+
+    private static final class Evaluation {
+        final Key key;
+        final CancellationToken token = new CancellationToken();
+        // Guarded by sLock
+        final List<Ticket> tickets = new ArrayList<>();
+        ScheduledFuture<?> timer;
+
+        Evaluation(Key key) {
+            this.key = key;
+        }
+    }
+
+    /** Handle of one request */
+    static final class Ticket {
+        private final Runnable mOnDone;
+        // Guarded by sLock
+        private Evaluation mEvaluation;
+        private boolean mFinished;
+
+        private Ticket(Runnable onDone) {
+            mOnDone = onDone;
+        }
+
+        /** Withdraw the request, the evaluation is cancelled if nobody else waits for it. The callback is not called. */
+        void cancel() {
+            synchronized (sLock) {
+                if (mFinished)
+                    return;
+                mFinished = true;
+                Evaluation evaluation = mEvaluation;
+                if (evaluation != null) {
+                    evaluation.tickets.remove(this);
+                    if (evaluation.tickets.isEmpty())
+                        cancelLocked(evaluation);
+                }
+            }
+        }
+    }
+
+    private EvaluationScheduler() {
+    }
+
+    /**
+     * Request an evaluation of the carrier bundle, returns immediately.
+     *
+     * @param reason for the log
+     * @param onDone called on a background thread when the evaluation, or the one the request was folded into, is done
+     */
+    static Ticket request(Context context, String reason, Runnable onDone) {
+        sRequested.incrementAndGet();
+        Context appContext = context.getApplicationContext();
+        Ticket ticket = new Ticket(onDone);
+        // Capturing the key costs binder calls, keep them off the caller's (main) thread
+        INTAKE.execute(() -> intake(appContext, reason, ticket));
+        return ticket;
+    }
+
+    private static void intake(Context context, String reason, Ticket ticket) {
+        Key key = new Key(context);
+        synchronized (sLock) {
+            if (ticket.mFinished)
+                return;
+            if (sRunning != null && !sRunning.token.isCancelled() && sRunning.key.equals(key)) {
+                CSLog.d(TAG, "{}: same evaluation running, dropped", reason);
+                sDropped.incrementAndGet();
+                attachLocked(ticket, sRunning);
+                return;
+            }
+            if (sPending != null && sPending.key.equals(key)) {
+                CSLog.d(TAG, "{}: coalesced", reason);
+                sCoalesced.incrementAndGet();
+                attachLocked(ticket, sPending);
+                return;
+            }
+            // Only redundant if nothing else is under way, an evaluation with another key must still be made obsolete
+            if (sPending == null && (sRunning == null || sRunning.key.equals(key)) && key.equals(sLastKey)
+                    && System.currentTimeMillis() - sLastDone < REDUNDANT_MS) {
+                CSLog.d(TAG, "{}: same evaluation just finished, dropped", reason);
+                sDropped.incrementAndGet();
+                ticket.mFinished = true;
+            } else {
+                CSLog.d(TAG, "{}: scheduled", reason);
+                Evaluation evaluation = new Evaluation(key);
+                // The SIM or settings changed, older evaluations are obsolete
+                for (Evaluation obsolete : new Evaluation[]{sPending, sRunning}) {
+                    if (obsolete != null && !obsolete.token.isCancelled()) {
+                        for (Ticket waiting : obsolete.tickets)
+                            attachLocked(waiting, evaluation);
+                        obsolete.tickets.clear();
+                        cancelLocked(obsolete);
+                    }
+                }
+                attachLocked(ticket, evaluation);
+                sPending = evaluation;
+                evaluation.timer = INTAKE.schedule(() -> EVALUATOR.execute(() -> run(context, evaluation)),
+                        WINDOW_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        ticket.mOnDone.run();
+    }
+
+    private static void attachLocked(Ticket ticket, Evaluation evaluation) {
+        ticket.mEvaluation = evaluation;
+        evaluation.tickets.add(ticket);
+    }
+
+    private static void cancelLocked(Evaluation evaluation) {
+        evaluation.token.cancel();
+        sCancelled.incrementAndGet();
+        if (sPending == evaluation) {
+            sPending = null;
+            if (evaluation.timer != null)
+                evaluation.timer.cancel(false);
+        }
+        CSLog.d(TAG, "Evaluation cancelled");
+    }
+
+    private static void run(Context context, Evaluation evaluation) {
+        synchronized (sLock) {
+            if (evaluation.token.isCancelled())
+                return;
+            if (sPending == evaluation)
+                sPending = null;
+            sRunning = evaluation;
+        }
+        List<Ticket> tickets;
+        try {
+            CustomizationSelectorService.evaluateCarrierBundle(context, evaluation.key.simInfo, evaluation.token);
+        } finally {
+            synchronized (sLock) {
+                if (sRunning == evaluation)
+                    sRunning = null;
+                if (!evaluation.token.isCancelled()) {
+                    sLastKey = evaluation.key;
+                    sLastDone = System.currentTimeMillis();
+                    sEvaluated.incrementAndGet();
+                }
+                tickets = new ArrayList<>(evaluation.tickets);
+                evaluation.tickets.clear();
+                for (Ticket ticket : tickets)
+                    ticket.mFinished = true;
+            }
+        }
+        CSLog.d(TAG, "Requests: {}, evaluations: {}, coalesced: {}, dropped: {}", sRequested.get(), sEvaluated.get(),
+                sCoalesced.get(), sDropped.get());
+        for (Ticket ticket : tickets)
+            ticket.mOnDone.run();
+    }
+
+    static int getRequestedCount() {
+        return sRequested.get();
+    }
+
+    static int getEvaluatedCount() {
+        return sEvaluated.get();
+    }
+
+    /** Number of requests folded into a pending evaluation */
+    static int getCoalescedCount() {
+        return sCoalesced.get();
+    }
+
+    /** Number of requests made redundant by a running or just finished evaluation */
+    static int getDroppedCount() {
+        return sDropped.get();
+    }
+
+    /** Number of evaluations cancelled because they became obsolete or nobody waited for them anymore */
+    static int getCancelledCount() {
+        return sCancelled.get();
+    }
+}
@@ -11,6 +11,7 @@ import android.os.SystemProperties;
 import android.provider.Settings;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
 import androidx.core.app.NotificationCompat;
 
 import java.io.BufferedReader;
@@ -29,7 +30,8 @@ public class EventReceiver extends BroadcastReceiver {
     private int getSubId(Context context, Intent intent) {
         int subId = intent.getIntExtra(SUBSCRIPTION_KEY, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
         CSLog.d(TAG, "Event received for subscription: " + subId);
-        if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID && CommonUtil.isMandatorySimParamsAvailable(context, subId))
+        if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID
+                && CommonUtil.isMandatorySimParamsAvailable(SimInfo.capture(context.getSystemService(TelephonyManager.class), subId)))
             return subId;
         else
             return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
@@ -41,6 +43,18 @@ public class EventReceiver extends BroadcastReceiver {
             return;
         }
 
+        // SIM queries and reading /cache, which may be slow at boot
+        PendingResult pendingResult = goAsync();
+        BackgroundThread.post(() -> {
+            try {
+                handleEvent(context, intent);
+            } finally {
+                pendingResult.finish();
+            }
+        });
+    }
+
+    private void handleEvent(Context context, Intent intent) {
         int subID = getSubId(context, intent);
         if (subID != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
             CSLog.d(TAG, "Saving sub ID for later");
@@ -60,7 +74,7 @@ public class EventReceiver extends BroadcastReceiver {
         if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)) {
             CSLog.d(TAG, "Carrier config changed received");
 
-            if (CommonUtil.isDefaultDataSlot(context, getSubId(context, intent))) {
+            if (CommonUtil.isDefaultDataSlot(context, subID)) {
                 CSLog.d(TAG, "Default data SIM loaded");
                 Intent service = new Intent(context, CustomizationSelectorService.class)
                     .setAction(CustomizationSelectorService.EVALUATE_ACTION);
@@ -75,6 +75,7 @@ public class ImsSwitcher {
             builder.setMessage("Your device has now switched to default modem " + modem + "\nReboot required.");
             builder.setPositiveButton("Reboot", (dialogInterface, i) -> {
                 dialogInterface.dismiss();
+                CSLog.flush();
                 mContext.getSystemService(PowerManager.class).reboot(mContext.getString(R.string.reboot_reason_modem_debug));
             });
             AlertDialog dialog = builder.create();
@@ -0,0 +1,196 @@
+package com.sonymobile.customizationselector;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Matches an IMSI against the IMSI patterns of a range of {@link ProviderTable} rows in one pass.
+ * <p>
+ * Patterns that are really prefixes, i.e. digits and single digit wildcards ({@code .}, {@code \d}, {@code [0-9]})
+ * optionally followed by {@code .*}, {@code \d*} or {@code [0-9]*}, are merged into a digit trie.
+ * All other patterns fall back to {@link java.util.regex.Pattern}. Results equal {@code Pattern.matcher(imsi).matches()}.
+ */
+final class ImsiTrie {
+
+    // Kind of tail after the prefix of a pattern
+    private static final int TAIL_NONE = 0;
+    private static final int TAIL_ANY = 1;
+    private static final int TAIL_DIGITS = 2;
+
+    private static final class Node {
+        final Node[] digits = new Node[10];
+        // Children for a wildcard matching any character and one matching any digit
+        Node any, digit;
+        // Providers whose pattern ends here: without tail, with ".*" and with a digit tail
+        List<Integer> exact, anyTail, digitTail;
+    }
+
+    private final Node mRoot = new Node();
+    // Providers with an IMSI pattern the trie cannot represent
+    private final List<Integer> mFallback = new ArrayList<>();
+    private final ProviderTable mTable;
+    private final int mFrom, mCount;
+
+    /** Build for rows [from, to) of the table, results are relative to {@code from} */
+    ImsiTrie(ProviderTable table, int from, int to) {
+        mTable = table;
+        mFrom = from;
+        mCount = to - from;
+        for (int i = 0; i < mCount; i++) {
+            String imsi = table.getIMSI(from + i);
+            if (imsi != null && !insert(imsi, i))
+                mFallback.add(i);
+        }
+    }
+
+    /** Returns the rows, relative to the first one, whose IMSI pattern matches {@code imsi} */
+    BitSet match(String imsi) {
+        BitSet result = new BitSet(mCount);
+        if (imsi == null)
+            return result;
+        List<Node> active = new ArrayList<>();
+        List<Node> next = new ArrayList<>();
+        active.add(mRoot);
+        for (int pos = 0; pos <= imsi.length() && !active.isEmpty(); pos++) {
+            boolean restIsDigits = isDigits(imsi, pos);
+            for (Node node : active) {
+                addAll(result, node.anyTail, !hasLineTerminator(imsi, pos));
+                addAll(result, node.digitTail, restIsDigits);
+                if (pos == imsi.length())
+                    addAll(result, node.exact, true);
+            }
+            if (pos == imsi.length())
+                break;
+            char c = imsi.charAt(pos);
+            next.clear();
+            for (Node node : active) {
+                if (c >= '0' && c <= '9') {
+                    addIfSet(next, node.digits[c - '0']);
+                    addIfSet(next, node.digit);
+                }
+                if (!isLineTerminator(c))
+                    addIfSet(next, node.any);
+            }
+            List<Node> swap = active;
+            active = next;
+            next = swap;
+        }
+        for (int i : mFallback) {
+            if (mTable.getIMSIPattern(mFrom + i).matcher(imsi).matches())
+                result.set(i);
+        }
+        return result;
+    }
+
+    private static void addIfSet(List<Node> nodes, Node node) {
+        if (node != null && !nodes.contains(node))
+            nodes.add(node);
+    }
+
+    private static void addAll(BitSet result, List<Integer> providers, boolean condition) {
+        if (providers == null || !condition)
+            return;
+        for (int i : providers)
+            result.set(i);
+    }
+
+    private static boolean isDigits(String s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9')
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean hasLineTerminator(String s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (isLineTerminator(s.charAt(i)))
+                return true;
+        }
+        return false;
+    }
+
+    /** Characters not matched by "." without DOTALL */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /** Add a prefix-shaped pattern, returns false if the pattern is not one */
+    private boolean insert(String pattern, int provider) {
+        int pos = 0, end = pattern.length();
+        if (pattern.startsWith("^"))
+            pos++;
+        if (end > pos && pattern.endsWith("$") && !pattern.endsWith("\\$"))
+            end--;
+        int tail = TAIL_NONE;
+        if (pattern.startsWith(".*", end - 2) && end - 2 >= pos && !isEscaped(pattern, end - 2)) {
+            tail = TAIL_ANY;
+            end -= 2;
+        } else if (pattern.startsWith("\\d*", end - 3) && end - 3 >= pos && !isEscaped(pattern, end - 3)) {
+            tail = TAIL_DIGITS;
+            end -= 3;
+        } else if (pattern.startsWith("[0-9]*", end - 6) && end - 6 >= pos && !isEscaped(pattern, end - 6)) {
+            tail = TAIL_DIGITS;
+            end -= 6;
+        }
+        // Validate first so a rejected pattern leaves no nodes behind
+        List<Integer> tokens = new ArrayList<>();
+        while (pos < end) {
+            char c = pattern.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                tokens.add(c - '0');
+                pos++;
+            } else if (c == '.') {
+                tokens.add(-1);
+                pos++;
+            } else if (pattern.startsWith("\\d", pos)) {
+                tokens.add(-2);
+                pos += 2;
+            } else if (pattern.startsWith("[0-9]", pos)) {
+                tokens.add(-2);
+                pos += 5;
+            } else
+                return false;
+        }
+        if (pos != end)
+            return false;
+        Node node = mRoot;
+        for (int token : tokens) {
+            if (token >= 0) {
+                if (node.digits[token] == null)
+                    node.digits[token] = new Node();
+                node = node.digits[token];
+            } else if (token == -1) {
+                if (node.any == null)
+                    node.any = new Node();
+                node = node.any;
+            } else {
+                if (node.digit == null)
+                    node.digit = new Node();
+                node = node.digit;
+            }
+        }
+        if (tail == TAIL_ANY)
+            node.anyTail = add(node.anyTail, provider);
+        else if (tail == TAIL_DIGITS)
+            node.digitTail = add(node.digitTail, provider);
+        else
+            node.exact = add(node.exact, provider);
+        return true;
+    }
+
+    private static boolean isEscaped(String pattern, int pos) {
+        int backslashes = 0;
+        while (pos - backslashes - 1 >= 0 && pattern.charAt(pos - backslashes - 1) == '\\')
+            backslashes++;
+        return backslashes % 2 == 1;
+    }
+
+    private static List<Integer> add(List<Integer> list, int provider) {
+        if (list == null)
+            list = new ArrayList<>(1);
+        list.add(provider);
+        return list;
+    }
+}
@@ -3,88 +3,259 @@ package com.sonymobile.customizationselector;
 import android.app.Activity;
 import android.os.Bundle;
 import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.ProgressBar;
-import android.widget.ScrollView;
-import android.widget.Toast;
-import androidx.appcompat.widget.AppCompatTextView;
+import android.widget.Spinner;
+import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.appcompat.widget.AppCompatEditText;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class LogActivity extends Activity {
 
-    private static final long SIZE_THRESH_HOLD = 2 * 1024 * 1024L; // 2 MB
+    private static final String TAG = "LogActivity";
+
+    // Load the previous page once the first visible line is this close to the top
+    private static final int PREFETCH_LINES = 50;
+    private static final long SEARCH_DELAY_MS = 300;
+    private static final char[] LEVELS = {'D', 'I', 'W', 'E'};
+    private static final long[] TIME_RANGES_MS = {0, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L};
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private Handler mHandler;
+    private File mLogDir;
+    private LogReader mReader;
+    // Incremented on every filter change, pages of older readers are discarded
+    private int mGeneration = 0;
+    private LineAdapter mAdapter;
+    private LinearLayoutManager mLayoutManager;
+    private ProgressBar mProgressBar;
+    private AppCompatEditText mSearch;
+    private Spinner mTagSpinner, mLevelSpinner, mTimeSpinner;
+    private boolean mLoading = false;
+
+    private static class LineAdapter extends RecyclerView.Adapter<LineAdapter.ViewHolder> {
+        private final ArrayList<String> mLines = new ArrayList<>();
+
+        static class ViewHolder extends RecyclerView.ViewHolder {
+            final TextView text;
+
+            ViewHolder(TextView view) {
+                super(view);
+                text = view;
+            }
+        }
+
+        void clear() {
+            mLines.clear();
+            notifyDataSetChanged();
+        }
+
+        void prepend(List<String> lines) {
+            mLines.addAll(0, lines);
+            notifyItemRangeInserted(0, lines.size());
+        }
+
+        @NonNull
+        @Override
+        public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            return new ViewHolder((TextView) LayoutInflater.from(parent.getContext()).inflate(R.layout.log_line, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+            holder.text.setText(mLines.get(position));
+        }
+
+        @Override
+        public int getItemCount() {
+            return mLines.size();
+        }
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_log);
 
-        AppCompatTextView logText = findViewById(R.id.log_text);
-        ProgressBar progressBar = findViewById(R.id.log_pr);
-        ScrollView scrollView = findViewById(R.id.log_scroll);
+        mHandler = new Handler(getMainLooper());
+        mProgressBar = findViewById(R.id.log_pr);
+        mAdapter = new LineAdapter();
+        mLayoutManager = new LinearLayoutManager(this);
+        mLayoutManager.setStackFromEnd(true);
+
+        RecyclerView logList = findViewById(R.id.log_list);
+        logList.setLayoutManager(mLayoutManager);
+        logList.setAdapter(mAdapter);
+        logList.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (mLayoutManager.findFirstVisibleItemPosition() < PREFETCH_LINES)
+                    loadPreviousPage();
+            }
+        });
 
-        File logFile = new File(createDeviceProtectedStorageContext().getFilesDir(), "cs.log");
+        mLogDir = createDeviceProtectedStorageContext().getFilesDir();
+        mSearch = findViewById(R.id.log_search);
+        mTagSpinner = findViewById(R.id.log_tag);
+        mLevelSpinner = findViewById(R.id.log_level);
+        mTimeSpinner = findViewById(R.id.log_time);
+        findViewById(R.id.log_export).setOnClickListener(v -> DiagnosticsExporter.exportAndShare(this, v));
+        setupFilters();
+        reload();
+    }
 
-        BufferedReader br = null;
-        try {
-            br = new BufferedReader(new InputStreamReader(new FileInputStream(logFile)));
-            String line;
-            ArrayList<String> lines = new ArrayList<>();
-
-            // Get all the lines
-            while ((line = br.readLine()) != null)
-                lines.add(line + "\n");
-            br.close();
-            br = null;
-
-            new Handler(getMainLooper()).postDelayed(() -> {
-                boolean threshTrimmed = false;
-                ArrayList<String> outLines = new ArrayList<>();
-
-                // Append from last line to first till it reaches thresh hold
-                long len = 0L;
-                for (int i = lines.size() - 1; i >= 0; i--) {
-                    if (len >= SIZE_THRESH_HOLD) {
-                        threshTrimmed = true;
-                        break;
-                    }
-                    len += lines.get(i).length();
-                    outLines.add(lines.get(i));
-                }
+    /** Reloads when the selection changes, not for the initial selection reported after an adapter is set */
+    private final class FilterListener implements AdapterView.OnItemSelectedListener {
+        private int mPosition = 0;
 
-                // Print it
-                progressBar.setVisibility(View.GONE);
-                for (int i = outLines.size() - 1; i >= 0; i--) {
-                    logText.append(outLines.get(i));
-                }
+        @Override
+        public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+            if (position == mPosition)
+                return;
+            mPosition = position;
+            reload();
+        }
 
-                if (threshTrimmed)
-                    Toast.makeText(this, "Data trimmed to 2MB of chars", Toast.LENGTH_LONG).show();
-
-                // Clear memory as much as possible
-                lines.clear();
-                outLines.clear();
-                System.gc();
-
-                // Scroll to bottom
-                new Handler(getMainLooper()).postDelayed(() -> scrollView.smoothScrollBy(0,
-                        (scrollView.getChildAt(scrollView.getChildCount() - 1).getBottom() + scrollView.getPaddingBottom())
-                                - (scrollView.getScrollY() - scrollView.getHeight())), 500);
-            }, 400);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
+        @Override
+        public void onNothingSelected(AdapterView<?> parent) {
+        }
+    }
+
+    private void setupFilters() {
+        mLevelSpinner.setOnItemSelectedListener(new FilterListener());
+        mTimeSpinner.setOnItemSelectedListener(new FilterListener());
+        mTagSpinner.setOnItemSelectedListener(new FilterListener());
+
+        mExecutor.execute(() -> {
+            List<String> tags = new ArrayList<>();
+            tags.add(getString(R.string.log_all_tags));
+            tags.addAll(LogSegments.readTags(mLogDir));
+            mHandler.post(() -> mTagSpinner.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, tags)));
+        });
+
+        Runnable search = this::reload;
+        mSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mHandler.removeCallbacks(search);
+                mHandler.postDelayed(search, SEARCH_DELAY_MS);
+            }
+
+            @Override
+            public void afterTextChanged(Editable editable) {
+            }
+        });
+    }
+
+    private LogReader.Filter createFilter() {
+        int tagPos = mTagSpinner.getSelectedItemPosition();
+        String tag = tagPos > 0 ? mTagSpinner.getSelectedItem().toString() : null;
+        char level = LEVELS[Math.max(0, mLevelSpinner.getSelectedItemPosition())];
+        long range = TIME_RANGES_MS[Math.max(0, mTimeSpinner.getSelectedItemPosition())];
+        long since = range > 0 ? System.currentTimeMillis() - range : 0;
+        String query = mSearch.getText() != null ? mSearch.getText().toString().trim() : "";
+        if (tag == null && level == 'D' && since == 0 && query.isEmpty())
+            return null;
+        return new LogReader.Filter(tag, level, since, query);
+    }
+
+    /** Start reading from the end of the log with the current filter */
+    private void reload() {
+        if (mExecutor.isShutdown())
+            return;
+        final int generation = ++mGeneration;
+        final LogReader.Filter filter = createFilter();
+        mAdapter.clear();
+        mProgressBar.setVisibility(View.VISIBLE);
+        mLoading = true;
+        final LogReader oldReader = mReader;
+        mReader = null;
+        mExecutor.execute(() -> {
+            closeReader(oldReader);
+            LogReader reader = null;
             try {
-                if (br != null)
-                    br.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+                reader = new LogReader(mLogDir, filter);
+            } catch (IOException e) {
+                CSLog.e(TAG, "Failed to open log", e);
             }
+            final LogReader newReader = reader;
+            mHandler.post(() -> {
+                if (generation != mGeneration) {
+                    mExecutor.execute(() -> closeReader(newReader));
+                    return;
+                }
+                mReader = newReader;
+                mLoading = false;
+                loadPreviousPage();
+            });
+        });
+    }
+
+    private static void closeReader(LogReader reader) {
+        try {
+            if (reader != null)
+                reader.close();
+        } catch (IOException ignored) {
         }
     }
+
+    @Override
+    protected void onDestroy() {
+        final LogReader reader = mReader;
+        mExecutor.execute(() -> closeReader(reader));
+        mExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    private void loadPreviousPage() {
+        mHandler.post(() -> {
+            if (mLoading || mReader == null || !mReader.hasMore() || mExecutor.isShutdown()) {
+                if (!mLoading)
+                    mProgressBar.setVisibility(View.GONE);
+                return;
+            }
+            mLoading = true;
+            final int generation = mGeneration;
+            final LogReader reader = mReader;
+            mExecutor.execute(() -> {
+                List<String> lines;
+                try {
+                    lines = reader.readPreviousPage();
+                } catch (IOException e) {
+                    CSLog.e(TAG, "Failed to read log", e);
+                    lines = new ArrayList<>();
+                }
+                final List<String> page = lines;
+                mHandler.post(() -> {
+                    if (generation != mGeneration)
+                        return;
+                    mProgressBar.setVisibility(View.GONE);
+                    mAdapter.prepend(page);
+                    mLoading = false;
+                    // Fill the screen if the first page was short
+                    if (mLayoutManager.findFirstVisibleItemPosition() < PREFETCH_LINES)
+                        loadPreviousPage();
+                });
+            });
+        });
+    }
 }
@@ -0,0 +1,156 @@
+package com.sonymobile.customizationselector;
+
+import android.icu.text.SimpleDateFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Text and binary record formats of the CS log segments.
+ * <p>
+ * A text segment holds one line per record: {@code yyyy/MM/dd HH:mm:ss.SSS L TAG: message}.
+ * A binary segment starts with {@link #BINARY_MAGIC} followed by records of
+ * <ul>
+ * <li>flags byte: 0x80 | absolute time (0x04) | level rank (0x03)</li>
+ * <li>varint time: ms since epoch if absolute, else zigzag delta to the previous record</li>
+ * <li>varint tag id + 1, the id being the position in {@code cs.log.tags}</li>
+ * <li>varint payload length + 1, UTF-8 payload</li>
+ * </ul>
+ * Ids and lengths are stored +1 so a record never ends with a zero byte, see {@link LogSegments#dataLength}.
+ */
+final class LogFormat {
+
+    static final String TIME_FORMAT = "yyyy/MM/dd HH:mm:ss.SSS";
+    static final byte[] BINARY_MAGIC = {'C', 'S', 'B', 1};
+
+    private static final String LEVELS = "DIWE";
+    private static final int FLAG_RECORD = 0x80;
+    private static final int FLAG_ABSOLUTE = 0x04;
+    private static final int LEVEL_MASK = 0x03;
+
+    private LogFormat() {
+    }
+
+    static void appendText(StringBuilder sb, SimpleDateFormat dateFormat, long time, String type, String tag, String msg) {
+        sb.append(dateFormat.format(time)).append(' ').append(type).append(' ')
+                .append(tag).append(": ").append(msg).append('\n');
+    }
+
+    static boolean isBinary(byte[] head, int length) {
+        if (length < BINARY_MAGIC.length)
+            return false;
+        for (int i = 0; i < BINARY_MAGIC.length; i++) {
+            if (head[i] != BINARY_MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** Growable byte buffer for encoding a batch of binary records */
+    static final class BinaryWriter extends ByteArrayOutputStream {
+        private long mPreviousTime;
+
+        BinaryWriter() {
+            super(4096);
+        }
+
+        /** Start a new batch, its first record carries an absolute time */
+        void begin() {
+            reset();
+            mPreviousTime = -1;
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        void writeRecord(long time, String type, int tagId, String msg) {
+            boolean absolute = mPreviousTime < 0;
+            write(FLAG_RECORD | (absolute ? FLAG_ABSOLUTE : 0) | (Math.max(0, LEVELS.indexOf(type.charAt(0))) & LEVEL_MASK));
+            if (absolute)
+                writeVarint(time);
+            else {
+                long delta = time - mPreviousTime;
+                writeVarint((delta << 1) ^ (delta >> 63));
+            }
+            mPreviousTime = time;
+            writeVarint(tagId + 1);
+            byte[] payload = msg.replace('\0', ' ').getBytes(StandardCharsets.UTF_8);
+            writeVarint(payload.length + 1);
+            write(payload, 0, payload.length);
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+    }
+
+    /**
+     * Streaming decoder of a binary segment, renders each record as a text line.
+     */
+    static final class BinaryReader {
+        private final InputStream mIn;
+        private final List<String> mTags;
+        private final SimpleDateFormat mDateFormat = new SimpleDateFormat(TIME_FORMAT);
+        private final StringBuilder mLine = new StringBuilder(256);
+        private long mPreviousTime = 0;
+
+        /** @param in stream positioned after the magic and limited to the data of the segment */
+        BinaryReader(InputStream in, List<String> tags) {
+            mIn = in;
+            mTags = tags;
+        }
+
+        /** Returns the next record as text line without line break, null at the end */
+        String readLine() throws IOException {
+            int flags = mIn.read();
+            if (flags < 0)
+                return null;
+            if ((flags & FLAG_RECORD) == 0)
+                throw new IOException("Corrupt record");
+            long time = readVarint();
+            if ((flags & FLAG_ABSOLUTE) != 0)
+                mPreviousTime = time;
+            else
+                mPreviousTime += (time >>> 1) ^ -(time & 1);
+            int tagId = (int) readVarint() - 1;
+            String tag = tagId >= 0 && tagId < mTags.size() ? mTags.get(tagId) : "#" + tagId;
+            int length = (int) readVarint() - 1;
+            byte[] payload = new byte[Math.max(0, length)];
+            int read = 0;
+            while (read < payload.length) {
+                int n = mIn.read(payload, read, payload.length - read);
+                if (n < 0)
+                    throw new EOFException();
+                read += n;
+            }
+            mLine.setLength(0);
+            appendText(mLine, mDateFormat, mPreviousTime, String.valueOf(LEVELS.charAt(flags & LEVEL_MASK)), tag,
+                    new String(payload, StandardCharsets.UTF_8));
+            mLine.setLength(mLine.length() - 1);
+            return mLine.toString();
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = mIn.read();
+                if (b < 0)
+                    throw new EOFException();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Corrupt varint");
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.sonymobile.customizationselector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Sidecar index {@code cs.log.<seq>.idx} of a log segment.
+ * <p>
+ * Holds one fixed-size entry per line: byte offset in the segment, hash of the tag,
+ * time bucket (minutes since epoch), level and flags, so filters can seek straight to matching lines.
+ * The sync flag marks records a binary segment can be decoded from, see {@link LogFormat}.
+ * An instance collects the entries of one batch on the writer thread,
+ * including which records may start a segment ({@link LogFormat} binary records depend on their predecessor).
+ */
+final class LogIndex {
+
+    static final String SUFFIX = ".idx";
+    static final int ENTRY_SIZE = 16;
+
+    private static final String LEVELS = "DIWE";
+    private static final byte FLAG_SYNC = 1;
+    private static final long BUCKET_MS = 60 * 1000;
+
+    private int[] mStarts = new int[64];
+    private int[] mTags = new int[64];
+    private int[] mBuckets = new int[64];
+    private byte[] mLevels = new byte[64];
+    private boolean[] mSync = new boolean[64];
+    private int mCount = 0;
+    private final ByteBuffer mEntries = ByteBuffer.allocate(64 * ENTRY_SIZE);
+
+    static File indexFile(File segment) {
+        return new File(segment.getPath() + SUFFIX);
+    }
+
+    static int tagHash(String tag) {
+        return tag.hashCode();
+    }
+
+    static int timeBucket(long time) {
+        return (int) (time / BUCKET_MS);
+    }
+
+    /** Returns the rank of a level letter (D < I < W < E), unknown levels rank lowest */
+    static int levelRank(char level) {
+        return Math.max(0, LEVELS.indexOf(level));
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Record a line starting at byte {@code start} of the batch buffer.
+     *
+     * @param sync whether the record can be decoded without the records before it
+     */
+    void add(int start, String tag, String level, long time, boolean sync) {
+        if (mCount == mStarts.length) {
+            int size = mCount * 2;
+            mStarts = Arrays.copyOf(mStarts, size);
+            mTags = Arrays.copyOf(mTags, size);
+            mBuckets = Arrays.copyOf(mBuckets, size);
+            mLevels = Arrays.copyOf(mLevels, size);
+            mSync = Arrays.copyOf(mSync, size);
+        }
+        mStarts[mCount] = start;
+        mTags[mCount] = tagHash(tag);
+        mBuckets[mCount] = timeBucket(time);
+        mLevels[mCount] = (byte) level.charAt(0);
+        mSync[mCount] = sync;
+        mCount++;
+    }
+
+    boolean isSyncStart(int start) {
+        for (int i = 0; i < mCount; i++) {
+            if (mStarts[i] == start)
+                return mSync[i];
+        }
+        return false;
+    }
+
+    /** Returns the start of the first sync record after {@code from} in the batch buffer, -1 if there is none */
+    int nextSyncStart(int from) {
+        for (int i = 0; i < mCount; i++) {
+            if (mSync[i] && mStarts[i] > from)
+                return mStarts[i];
+        }
+        return -1;
+    }
+
+    /** Returns the start of the last sync record in (from, limit] of the batch buffer, -1 if there is none */
+    int lastSyncStart(int from, int limit) {
+        for (int i = mCount - 1; i >= 0; i--) {
+            if (mSync[i] && mStarts[i] > from && mStarts[i] <= limit)
+                return mStarts[i];
+        }
+        return -1;
+    }
+
+    /**
+     * Append the entries of lines starting in [from, to) of the batch buffer,
+     * which was written to the segment at {@code segmentPosition}.
+     */
+    void write(FileChannel index, int from, int to, long segmentPosition) throws IOException {
+        mEntries.clear();
+        for (int i = 0; i < mCount; i++) {
+            if (mStarts[i] < from || mStarts[i] >= to)
+                continue;
+            if (!mEntries.hasRemaining()) {
+                flipAndWrite(index);
+                mEntries.clear();
+            }
+            mEntries.putInt((int) (segmentPosition + mStarts[i] - from));
+            mEntries.putInt(mTags[i]);
+            mEntries.putInt(mBuckets[i]);
+            mEntries.put(mLevels[i]);
+            mEntries.put(mSync[i] ? FLAG_SYNC : 0).put((byte) 0).put((byte) 0);
+        }
+        flipAndWrite(index);
+    }
+
+    private void flipAndWrite(FileChannel index) throws IOException {
+        mEntries.flip();
+        while (mEntries.hasRemaining())
+            index.write(mEntries);
+    }
+
+    /**
+     * Read side of an index file, entries are read in blocks starting from the end.
+     */
+    static final class Reader implements AutoCloseable {
+        private static final int BLOCK_ENTRIES = 1024;
+
+        private final RandomAccessFile mFile;
+        private final byte[] mBlock = new byte[BLOCK_ENTRIES * ENTRY_SIZE];
+        private final ByteBuffer mBuffer = ByteBuffer.wrap(mBlock);
+        private int mBlockStart = 0, mBlockCount = 0;
+        private final int mEntryCount;
+
+        Reader(File indexFile) throws IOException {
+            mFile = new RandomAccessFile(indexFile, "r");
+            mEntryCount = (int) (mFile.length() / ENTRY_SIZE);
+        }
+
+        int size() {
+            return mEntryCount;
+        }
+
+        private void load(int entry) throws IOException {
+            if (entry >= mBlockStart && entry < mBlockStart + mBlockCount)
+                return;
+            mBlockStart = Math.max(0, entry - BLOCK_ENTRIES + 1);
+            mBlockCount = Math.min(BLOCK_ENTRIES, mEntryCount - mBlockStart);
+            mFile.seek((long) mBlockStart * ENTRY_SIZE);
+            mFile.readFully(mBlock, 0, mBlockCount * ENTRY_SIZE);
+        }
+
+        private int field(int entry, int fieldOffset) throws IOException {
+            load(entry);
+            return mBuffer.getInt((entry - mBlockStart) * ENTRY_SIZE + fieldOffset);
+        }
+
+        int offset(int entry) throws IOException {
+            return field(entry, 0);
+        }
+
+        int tag(int entry) throws IOException {
+            return field(entry, 4);
+        }
+
+        int bucket(int entry) throws IOException {
+            return field(entry, 8);
+        }
+
+        char level(int entry) throws IOException {
+            load(entry);
+            return (char) mBlock[(entry - mBlockStart) * ENTRY_SIZE + 12];
+        }
+
+        /** Whether decoding can start at the record, false for all entries of indexes written without flags */
+        boolean isSync(int entry) throws IOException {
+            load(entry);
+            return (mBlock[(entry - mBlockStart) * ENTRY_SIZE + 13] & FLAG_SYNC) != 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.sonymobile.customizationselector;
+
+import android.icu.text.SimpleDateFormat;
+import android.text.TextUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads the CS log backwards, one fixed-size page at a time, newest lines first.
+ * <p>
+ * Only the current page and an incomplete line from the previously read page are held in memory.
+ * With a {@link Filter} on tag, level or time the {@link LogIndex} of each segment is used to seek straight
+ * to matching lines. Text queries and segments without an index are scanned page by page.
+ * Binary records depend on their predecessors, so binary segments are decoded from one sync record
+ * (the start of a writer batch) to the next, found with the index. They are rendered as text lines.
+ */
+final class LogReader implements Closeable {
+
+    static final int PAGE_SIZE = 32 * 1024;
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+    // Index entries to check per call before returning what was found so far
+    private static final int INDEX_BATCH = 4096;
+
+    // Position of level and tag in a line, see LogFormat
+    private static final int LEVEL_POS = LogFormat.TIME_FORMAT.length() + 1;
+    private static final int TAG_POS = LEVEL_POS + 2;
+
+    /**
+     * Criteria for lines to show, null fields match everything.
+     */
+    static final class Filter {
+        final String tag;
+        final char minLevel;
+        final long since;
+        final String query;
+        private final int mTagHash, mMinLevelRank, mSinceBucket;
+        private SimpleDateFormat mDateFormat;
+
+        /**
+         * @param tag      exact tag including the "CS-" prefix
+         * @param minLevel one of D, I, W, E
+         * @param since    earliest time in ms, 0 for all
+         * @param query    text to search for, case insensitive
+         */
+        Filter(String tag, char minLevel, long since, String query) {
+            this.tag = tag;
+            this.minLevel = minLevel;
+            this.since = since;
+            this.query = TextUtils.isEmpty(query) ? null : query.toLowerCase(Locale.ROOT);
+            mTagHash = tag == null ? 0 : LogIndex.tagHash(tag);
+            mMinLevelRank = LogIndex.levelRank(minLevel);
+            mSinceBucket = LogIndex.timeBucket(since);
+        }
+
+        /** Whether the index can narrow down the lines, a text query alone matches every entry */
+        boolean usesIndex() {
+            return tag != null || mMinLevelRank > 0 || since > 0;
+        }
+
+        boolean matchesEntry(int tagHash, char level) {
+            return (tag == null || tagHash == mTagHash) && LogIndex.levelRank(level) >= mMinLevelRank;
+        }
+
+        /** Whether all lines in {@code bucket} and before are older than {@link #since} */
+        boolean isBefore(int bucket) {
+            return since > 0 && bucket < mSinceBucket;
+        }
+
+        boolean matchesLine(String line) {
+            if (line.length() <= TAG_POS)
+                return tag == null && minLevel == 'D' && since == 0 && query == null;
+            if (LogIndex.levelRank(line.charAt(LEVEL_POS)) < mMinLevelRank)
+                return false;
+            if (tag != null && !line.startsWith(tag + ": ", TAG_POS))
+                return false;
+            if (since > 0 && parseTime(line) < since)
+                return false;
+            return query == null || line.toLowerCase(Locale.ROOT).contains(query);
+        }
+
+        private long parseTime(String line) {
+            if (mDateFormat == null)
+                mDateFormat = new SimpleDateFormat(LogFormat.TIME_FORMAT);
+            try {
+                return mDateFormat.parse(line.substring(0, LogFormat.TIME_FORMAT.length())).getTime();
+            } catch (ParseException e) {
+                return 0;
+            }
+        }
+    }
+
+    private final File mLogDir;
+    private final File[] mSegments;
+    private final Filter mFilter;
+    private List<String> mTags;
+    // Index of the segment being read and the position in it, reading goes towards 0
+    private int mSegment;
+    private long mPosition, mDataLength;
+    private RandomAccessFile mFile;
+    private boolean mBinary;
+    // Index of the current segment and the next entry to check, only used with a filter
+    private LogIndex.Reader mIndex;
+    private int mEntry;
+
+    private final byte[] mPage = new byte[PAGE_SIZE];
+    // Start of the oldest line read so far, not yet complete
+    private byte[] mCarry = new byte[0];
+
+    LogReader(File logDir) throws IOException {
+        this(logDir, null);
+    }
+
+    LogReader(File logDir, Filter filter) throws IOException {
+        mLogDir = logDir;
+        mSegments = LogSegments.list(logDir);
+        mFilter = filter;
+        mSegment = mSegments.length;
+        openPreviousSegment();
+    }
+
+    boolean hasMore() {
+        return mFile != null;
+    }
+
+    /**
+     * Read the page before the previously read one.
+     *
+     * @return the complete (matching) lines of the page in file order, empty if the start of the log was reached
+     */
+    List<String> readPreviousPage() throws IOException {
+        List<String> lines = new ArrayList<>();
+        while (lines.isEmpty() && hasMore()) {
+            if (mBinary && mIndex != null)
+                readBinaryChunk(lines);
+            else if (mBinary)
+                readBinary(lines);
+            else if (mIndex != null)
+                readIndexed(lines);
+            else
+                readPage(lines);
+        }
+        Collections.reverse(lines);
+        return lines;
+    }
+
+    private void readPage(List<String> lines) throws IOException {
+        int len = (int) Math.min(PAGE_SIZE, mPosition);
+        mPosition -= len;
+        mFile.seek(mPosition);
+        mFile.readFully(mPage, 0, len);
+        splitPage(len, lines);
+        if (mPosition == 0) {
+            // Segments end with complete lines, so the carried bytes are the first line
+            if (mCarry.length > 0)
+                addLine(lines, decode(mCarry, 0, mCarry.length));
+            mCarry = new byte[0];
+            openPreviousSegment();
+        }
+    }
+
+    /** Decode the records from the last sync record before the current entry up to it */
+    private void readBinaryChunk(List<String> lines) throws IOException {
+        int last = mEntry;
+        if (mFilter != null && mFilter.isBefore(mIndex.bucket(last))) {
+            // Everything from here on is too old
+            mSegment = 0;
+            close();
+            return;
+        }
+        int first = last;
+        boolean matches = mFilter == null || mFilter.matchesEntry(mIndex.tag(last), mIndex.level(last));
+        while (first > 0 && !mIndex.isSync(first)) {
+            first--;
+            matches |= mFilter == null || mFilter.matchesEntry(mIndex.tag(first), mIndex.level(first));
+        }
+        mEntry = first - 1;
+        long start = mIndex.offset(first);
+        long end = last + 1 < mIndex.size() ? Math.min(mIndex.offset(last + 1), mDataLength) : mDataLength;
+        if (matches && end > start)
+            decodeBinary(start, end, lines);
+        if (mEntry < 0)
+            openPreviousSegment();
+    }
+
+    /** Decode a binary segment without index as a whole, it cannot be read backwards */
+    private void readBinary(List<String> lines) throws IOException {
+        decodeBinary(LogFormat.BINARY_MAGIC.length, mDataLength, lines);
+        openPreviousSegment();
+    }
+
+    /** Add the records in [start, end) of the current segment newest first, start must be a sync record */
+    private void decodeBinary(long start, long end, List<String> lines) {
+        if (mTags == null)
+            mTags = LogSegments.readTags(mLogDir);
+        List<String> chunk = new ArrayList<>();
+        try (InputStream in = LogSegments.openRecords(mSegments[mSegment], start, end)) {
+            LogFormat.BinaryReader reader = new LogFormat.BinaryReader(in, mTags);
+            String line;
+            while ((line = reader.readLine()) != null)
+                addLine(chunk, line);
+        } catch (IOException e) {
+            // Keep what could be decoded up to a damaged record
+            CSLog.w("LogReader", "Failed to decode " + mSegments[mSegment] + ": " + e);
+        }
+        for (int i = chunk.size() - 1; i >= 0; i--)
+            lines.add(chunk.get(i));
+    }
+
+    private void readIndexed(List<String> lines) throws IOException {
+        for (int checked = 0; mEntry >= 0 && checked < INDEX_BATCH; checked++) {
+            int entry = mEntry--;
+            if (mFilter.isBefore(mIndex.bucket(entry))) {
+                // Everything from here on is too old
+                mSegment = 0;
+                close();
+                return;
+            }
+            if (!mFilter.matchesEntry(mIndex.tag(entry), mIndex.level(entry)))
+                continue;
+            long start = mIndex.offset(entry);
+            long end = entry + 1 < mIndex.size() ? mIndex.offset(entry + 1) : mDataLength;
+            int len = (int) Math.min(Math.min(end, mDataLength) - start, PAGE_SIZE);
+            if (len <= 0)
+                continue;
+            mFile.seek(start);
+            mFile.readFully(mPage, 0, len);
+            if (mPage[len - 1] == '\n')
+                len--;
+            addLine(lines, decode(mPage, 0, len));
+        }
+        if (mEntry < 0)
+            openPreviousSegment();
+    }
+
+    private void addLine(List<String> lines, String line) {
+        if (mFilter == null || mFilter.matchesLine(line))
+            lines.add(line);
+    }
+
+    /** Add the lines of page + carry newest first and keep the leading incomplete line as new carry */
+    private void splitPage(int len, List<String> lines) {
+        int end = len;
+        boolean carryPending = mCarry.length > 0;
+        for (int i = len - 1; i >= 0; i--) {
+            if (mPage[i] != '\n')
+                continue;
+            if (carryPending) {
+                addLine(lines, decodeWithCarry(i + 1, end - i - 1));
+                carryPending = false;
+            } else if (i + 1 < end)
+                addLine(lines, decode(mPage, i + 1, end - i - 1));
+            end = i;
+        }
+        int carryLen = carryPending ? Math.min(mCarry.length, MAX_LINE_LENGTH) : 0;
+        int headLen = Math.min(end, MAX_LINE_LENGTH - carryLen);
+        byte[] carry = new byte[headLen + carryLen];
+        System.arraycopy(mPage, end - headLen, carry, 0, headLen);
+        if (carryLen > 0)
+            System.arraycopy(mCarry, 0, carry, headLen, carryLen);
+        mCarry = carry;
+    }
+
+    private void openPreviousSegment() throws IOException {
+        close();
+        while (--mSegment >= 0) {
+            File segment = mSegments[mSegment];
+            long length = LogSegments.dataLength(segment);
+            if (length == 0)
+                continue;
+            mFile = new RandomAccessFile(segment, "r");
+            mPosition = mDataLength = length;
+            mBinary = LogSegments.isBinary(segment);
+            File indexFile = LogIndex.indexFile(segment);
+            // Binary segments need the index to find the records to decode from
+            if (indexFile.isFile() && (mBinary || mFilter != null && mFilter.usesIndex())) {
+                mIndex = new LogIndex.Reader(indexFile);
+                mEntry = mIndex.size() - 1;
+                if (mEntry < 0) {
+                    mIndex.close();
+                    mIndex = null;
+                }
+            }
+            return;
+        }
+    }
+
+    /** Decode the page range followed by the carry, joined first so split characters stay intact */
+    private String decodeWithCarry(int offset, int length) {
+        byte[] line = new byte[length + mCarry.length];
+        System.arraycopy(mPage, offset, line, 0, length);
+        System.arraycopy(mCarry, 0, line, length, mCarry.length);
+        return decode(line, 0, line.length);
+    }
+
+    private static String decode(byte[] bytes, int offset, int length) {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mIndex != null)
+            mIndex.close();
+        mIndex = null;
+        if (mFile != null)
+            mFile.close();
+        mFile = null;
+    }
+}
@@ -0,0 +1,406 @@
+package com.sonymobile.customizationselector;
+
+import android.os.SystemProperties;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Rotating set of fixed-size log segments {@code cs.log.<seq>} which together form the CS log.
+ * <p>
+ * The current segment is preallocated and written through a persistent channel.
+ * Rolling over closes it, deletes the oldest segment once the byte budget is reached and starts a new one.
+ * Unused preallocated space is zero-filled, so readers have to stop at {@link #dataLength(File)}.
+ * Each segment has a {@link LogIndex} sidecar and all tags ever written are listed in {@code cs.log.tags},
+ * their position being the tag id used by the binary {@link LogFormat}.
+ */
+final class LogSegments {
+
+    private static final String TAG = "CS-LogSegments";
+
+    static final String BASE_NAME = "cs.log";
+    private static final String SEGMENT_PREFIX = BASE_NAME + ".";
+    private static final String TAGS_FILE = BASE_NAME + ".tags";
+
+    /** Total size of all segments in bytes */
+    private static final String PROP_LOG_BUDGET = "persist.sys.cs.log_budget";
+    private static final long DEFAULT_BUDGET = 1024 * 1024;
+    static final int SEGMENT_SIZE = 128 * 1024;
+    private static final int MIN_SEGMENTS = 2;
+
+    private static final int SCAN_BLOCK = 4096;
+
+    private final File mDir;
+    private final int mMaxSegments;
+    private final boolean mBinary;
+
+    // Sequence numbers of the oldest and current segment, -1 until opened
+    private long mOldestSeq = -1, mSeq = -1;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private FileChannel mIndexChannel;
+    private long mPosition;
+    // Bytes at the start of the current segment which are not records
+    private int mHeaderSize;
+    private final HashMap<String, Integer> mTagIds = new HashMap<>();
+
+    LogSegments(File dir, boolean binary) {
+        mDir = dir;
+        mBinary = binary;
+        long budget = SystemProperties.getLong(PROP_LOG_BUDGET, DEFAULT_BUDGET);
+        mMaxSegments = (int) Math.max(MIN_SEGMENTS, budget / SEGMENT_SIZE);
+    }
+
+    /**
+     * Append the buffer to the log, starting new segments as required.
+     * Segments only start at sync records, a segment may grow beyond its size if there is none.
+     *
+     * @param index entries for the lines in the buffer, positions relative to the buffer start
+     */
+    void write(ByteBuffer buffer, LogIndex index) throws IOException {
+        if (mChannel == null && !open())
+            return;
+        while (buffer.hasRemaining()) {
+            long space = SEGMENT_SIZE - mPosition;
+            if (buffer.remaining() > space) {
+                int end = index.lastSyncStart(buffer.position(), buffer.position() + (int) Math.max(0, space));
+                if (end < 0) {
+                    if (mPosition > mHeaderSize && index.isSyncStart(buffer.position())) {
+                        // Nothing more fits, start the next segment with the record at the current position
+                        roll();
+                        continue;
+                    }
+                    // Overfill the segment up to the next sync record
+                    end = index.nextSyncStart(buffer.position());
+                    if (end < 0) {
+                        writeFully(buffer, index);
+                        continue;
+                    }
+                }
+                int limit = buffer.limit();
+                buffer.limit(end);
+                writeFully(buffer, index);
+                buffer.limit(limit);
+                roll();
+            } else
+                writeFully(buffer, index);
+        }
+    }
+
+    boolean isBinary() {
+        return mBinary;
+    }
+
+    /** Returns the id of a tag, new tags are added to the tags file */
+    int tagId(String tag) throws IOException {
+        Integer id = mTagIds.get(tag);
+        if (id != null)
+            return id;
+        if (mChannel == null && !open())
+            return -1;
+        id = mTagIds.size();
+        mTagIds.put(tag, id);
+        try (FileWriter writer = new FileWriter(new File(mDir, TAGS_FILE), true)) {
+            writer.write(tag + "\n");
+        }
+        return id;
+    }
+
+    void force() throws IOException {
+        if (mChannel != null)
+            mChannel.force(false);
+        if (mIndexChannel != null)
+            mIndexChannel.force(false);
+    }
+
+    void close() {
+        try {
+            if (mFile != null)
+                mFile.close();
+            if (mIndexChannel != null)
+                mIndexChannel.close();
+        } catch (IOException ignored) {
+        }
+        mFile = null;
+        mChannel = null;
+        mIndexChannel = null;
+    }
+
+    private void writeFully(ByteBuffer buffer, LogIndex index) throws IOException {
+        int from = buffer.position();
+        long segmentPosition = mPosition;
+        while (buffer.hasRemaining())
+            mPosition += mChannel.write(buffer, mPosition);
+        index.write(mIndexChannel, from, buffer.position(), segmentPosition);
+    }
+
+    private boolean open() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs())
+            return false;
+        migrateLegacyLog();
+        // Opened again after a write error, the ids must stay the positions in the tags file
+        mTagIds.clear();
+        for (String tag : readTags(mDir))
+            mTagIds.put(tag, mTagIds.size());
+
+        File[] segments = list(mDir);
+        if (segments.length == 0) {
+            mOldestSeq = mSeq = 0;
+            openSegment(true);
+        } else {
+            mOldestSeq = seqOf(segments[0]);
+            mSeq = seqOf(segments[segments.length - 1]);
+            openSegment(false);
+            mPosition = dataLength(segmentFile(mSeq));
+            deleteExcessSegments();
+            // Continue in a new segment if the format was changed, also if the segment is still empty:
+            // a preallocated text segment has no magic
+            if (isBinary(segmentFile(mSeq)) != mBinary)
+                roll();
+            else if (mBinary)
+                mHeaderSize = LogFormat.BINARY_MAGIC.length;
+        }
+        return true;
+    }
+
+    private void roll() throws IOException {
+        close();
+        mSeq++;
+        deleteExcessSegments();
+        openSegment(true);
+    }
+
+    private void deleteExcessSegments() {
+        while (mSeq - mOldestSeq + 1 > mMaxSegments) {
+            segmentFile(mOldestSeq).delete();
+            LogIndex.indexFile(segmentFile(mOldestSeq)).delete();
+            mOldestSeq++;
+        }
+    }
+
+    private void openSegment(boolean preallocate) throws IOException {
+        File file = segmentFile(mSeq);
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mIndexChannel = FileChannel.open(LogIndex.indexFile(file).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        mPosition = 0;
+        mHeaderSize = 0;
+        if (preallocate) {
+            try {
+                Os.posix_fallocate(mFile.getFD(), 0, SEGMENT_SIZE);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Failed to preallocate " + file + ": " + e);
+            }
+            if (mBinary) {
+                ByteBuffer magic = ByteBuffer.wrap(LogFormat.BINARY_MAGIC);
+                while (magic.hasRemaining())
+                    mPosition += mChannel.write(magic, mPosition);
+                mHeaderSize = (int) mPosition;
+            }
+        }
+    }
+
+    /** The single cs.log of older versions becomes the oldest segment */
+    private void migrateLegacyLog() {
+        File legacy = new File(mDir, BASE_NAME);
+        if (legacy.isFile() && list(mDir).length == 0 && !legacy.renameTo(new File(mDir, SEGMENT_PREFIX + 0)))
+            legacy.delete();
+    }
+
+    private File segmentFile(long seq) {
+        return new File(mDir, SEGMENT_PREFIX + seq);
+    }
+
+    private static long seqOf(File segment) {
+        try {
+            return Long.parseLong(segment.getName().substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns all segments in {@code dir}, oldest first */
+    static File[] list(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX));
+        if (files == null)
+            return new File[0];
+        files = Arrays.stream(files).filter(f -> seqOf(f) >= 0).toArray(File[]::new);
+        Arrays.sort(files, Comparator.comparingLong(LogSegments::seqOf));
+        return files;
+    }
+
+    static boolean isBinary(File segment) throws IOException {
+        try (FileInputStream in = new FileInputStream(segment)) {
+            byte[] head = new byte[LogFormat.BINARY_MAGIC.length];
+            return LogFormat.isBinary(head, in.read(head));
+        }
+    }
+
+    /** Returns all tags ever written to the log in {@code dir} */
+    static List<String> readTags(File dir) {
+        List<String> tags = new ArrayList<>();
+        File tagsFile = new File(dir, TAGS_FILE);
+        if (!tagsFile.isFile())
+            return tags;
+        try (BufferedReader reader = new BufferedReader(new FileReader(tagsFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !tags.contains(line))
+                    tags.add(line);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read tags: " + e);
+        }
+        return tags;
+    }
+
+    /** Returns the number of bytes actually written to the segment, excluding the zero-filled tail */
+    static long dataLength(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            byte[] block = new byte[SCAN_BLOCK];
+            long end = file.length();
+            while (end > 0) {
+                int len = (int) Math.min(SCAN_BLOCK, end);
+                file.seek(end - len);
+                file.readFully(block, 0, len);
+                for (int i = len - 1; i >= 0; i--) {
+                    if (block[i] != 0)
+                        return end - len + i + 1;
+                }
+                end -= len;
+            }
+            return 0;
+        }
+    }
+
+    /** Open all segments in {@code dir} as one continuous text stream, binary segments are decoded on the fly */
+    static InputStream openLogicalStream(File dir) throws IOException {
+        List<InputStream> streams = new ArrayList<>();
+        List<String> tags = null;
+        for (File segment : list(dir)) {
+            if (isBinary(segment)) {
+                if (tags == null)
+                    tags = readTags(dir);
+                streams.add(new DecodingInputStream(openRecords(segment), tags));
+            } else
+                streams.add(new LimitedInputStream(new FileInputStream(segment), dataLength(segment)));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /** Open the records of a binary segment, i.e. the data after the magic */
+    static InputStream openRecords(File segment) throws IOException {
+        return openRecords(segment, LogFormat.BINARY_MAGIC.length, dataLength(segment));
+    }
+
+    /** Open the bytes [start, end) of a binary segment, start must be a sync record */
+    static InputStream openRecords(File segment, long start, long end) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(segment));
+        if (in.skip(start) != start) {
+            in.close();
+            throw new IOException("Truncated segment " + segment);
+        }
+        return new LimitedInputStream(in, Math.max(0, end - start));
+    }
+
+    /** Renders the records of a binary segment as text lines */
+    private static final class DecodingInputStream extends InputStream {
+        private final InputStream mIn;
+        private final LogFormat.BinaryReader mReader;
+        private byte[] mLine = new byte[0];
+        private int mLinePos = 0;
+
+        DecodingInputStream(InputStream in, List<String> tags) {
+            mIn = in;
+            mReader = new LogFormat.BinaryReader(in, tags);
+        }
+
+        private boolean fill() throws IOException {
+            if (mLinePos < mLine.length)
+                return true;
+            String line = mReader.readLine();
+            if (line == null)
+                return false;
+            mLine = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            mLinePos = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? mLine[mLinePos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!fill())
+                return -1;
+            int n = Math.min(len, mLine.length - mLinePos);
+            System.arraycopy(mLine, mLinePos, b, off, n);
+            mLinePos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            mRemaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0)
+                return -1;
+            int b = super.read();
+            if (b >= 0)
+                mRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0)
+                return -1;
+            int n = super.read(b, off, (int) Math.min(len, mRemaining));
+            if (n > 0)
+                mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.sonymobile.customizationselector;
+
+import android.icu.text.SimpleDateFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Background writer for {@link CSLog}.
+ * <p>
+ * Callers only copy their record into a bounded ring buffer, a single daemon thread
+ * drains it in batches to the {@link LogSegments}.
+ * When the buffer is full the oldest records are dropped and a marker line is written instead.
+ */
+final class LogSink implements Runnable {
+
+    private static final String TAG = "CS-LogSink";
+
+    private static final int CAPACITY = 512;
+    private static final int BATCH_SIZE = 64;
+
+    private final LogSegments mSegments;
+
+    // Ring buffer, guarded by this
+    private final long[] mTimes = new long[CAPACITY];
+    private final String[] mTypes = new String[CAPACITY];
+    private final String[] mTags = new String[CAPACITY];
+    private final String[] mMsgs = new String[CAPACITY];
+    private int mHead = 0, mCount = 0;
+    private long mDropped = 0;
+    // Sequence numbers of records put into the buffer and written to the file
+    private long mEnqueued = 0, mWritten = 0;
+    private boolean mForceRequested = false;
+
+    // Only accessed by the writer thread
+    private final long[] mBatchTimes = new long[BATCH_SIZE];
+    private final String[] mBatchTypes = new String[BATCH_SIZE];
+    private final String[] mBatchTags = new String[BATCH_SIZE];
+    private final String[] mBatchMsgs = new String[BATCH_SIZE];
+    private final StringBuilder mLine = new StringBuilder(256);
+    private final LogFormat.BinaryWriter mBinary = new LogFormat.BinaryWriter();
+    private final LogIndex mIndex = new LogIndex();
+    private SimpleDateFormat mDateFormat;
+
+    LogSink(LogSegments segments) {
+        mSegments = segments;
+        Thread thread = new Thread(this, "CSLog");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    synchronized void append(String type, String tag, String msg) {
+        if (mCount == CAPACITY) {
+            // Overwrite the oldest record
+            mHead = (mHead + 1) % CAPACITY;
+            mCount--;
+            mDropped++;
+            // A dropped record counts as handled for pending flushes
+            mWritten++;
+        }
+        int idx = (mHead + mCount) % CAPACITY;
+        mTimes[idx] = System.currentTimeMillis();
+        mTypes[idx] = type;
+        mTags[idx] = tag;
+        mMsgs[idx] = msg;
+        mCount++;
+        mEnqueued++;
+        if (mCount == 1)
+            notifyAll();
+    }
+
+    /**
+     * Block until everything logged so far is written and synced to storage, or the timeout expires.
+     */
+    synchronized void flush(long timeoutMs) {
+        long target = mEnqueued;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        mForceRequested = true;
+        notifyAll();
+        try {
+            while (mWritten < target || mForceRequested) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int n;
+            long dropped;
+            boolean force;
+            synchronized (this) {
+                while (mCount == 0 && !mForceRequested) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                n = Math.min(mCount, BATCH_SIZE);
+                for (int i = 0; i < n; i++) {
+                    int idx = (mHead + i) % CAPACITY;
+                    mBatchTimes[i] = mTimes[idx];
+                    mBatchTypes[i] = mTypes[idx];
+                    mBatchTags[i] = mTags[idx];
+                    mBatchMsgs[i] = mMsgs[idx];
+                    mTypes[idx] = mTags[idx] = mMsgs[idx] = null;
+                }
+                mHead = (mHead + n) % CAPACITY;
+                mCount -= n;
+                dropped = mDropped;
+                mDropped = 0;
+                // Only sync once the buffer is drained
+                force = mForceRequested && mCount == 0;
+            }
+
+            writeBatch(n, dropped, force);
+
+            synchronized (this) {
+                mWritten += n;
+                if (force)
+                    mForceRequested = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeBatch(int n, long dropped, boolean force) {
+        mLine.setLength(0);
+        mBinary.begin();
+        mIndex.clear();
+        int bytes = 0;
+        try {
+            if (dropped > 0)
+                bytes = appendRecord(bytes, System.currentTimeMillis(), "W", TAG, "Dropped " + dropped + " lines");
+            for (int i = 0; i < n; i++) {
+                bytes = appendRecord(bytes, mBatchTimes[i], mBatchTypes[i], mBatchTags[i], mBatchMsgs[i]);
+                mBatchTypes[i] = mBatchTags[i] = mBatchMsgs[i] = null;
+            }
+            if (bytes > 0) {
+                if (mSegments.isBinary())
+                    mSegments.write(mBinary.buffer(), mIndex);
+                else
+                    mSegments.write(StandardCharsets.UTF_8.encode(mLine.toString()), mIndex);
+            }
+            if (force)
+                mSegments.force();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write log", e);
+            mSegments.close();
+        }
+    }
+
+    /** Append a record to the batch and index it, returns the batch size in bytes */
+    private int appendRecord(int bytes, long time, String type, String tag, String msg) throws IOException {
+        int tagId = mSegments.tagId(tag);
+        if (mSegments.isBinary()) {
+            // Only the first record of a batch has an absolute time
+            mIndex.add(bytes, tag, type, time, bytes == 0);
+            mBinary.writeRecord(time, type, tagId, msg);
+            return mBinary.size();
+        }
+        mIndex.add(bytes, tag, type, time, true);
+        int start = mLine.length();
+        if (mDateFormat == null)
+            mDateFormat = new SimpleDateFormat(LogFormat.TIME_FORMAT);
+        LogFormat.appendText(mLine, mDateFormat, time, type, tag, msg);
+        return bytes + utf8Length(mLine, start);
+    }
+
+    private static int utf8Length(CharSequence s, int start) {
+        int len = 0;
+        for (int i = start; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                len++;
+            else if (c < 0x800)
+                len += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else
+                len += 3;
+        }
+        return len;
+    }
+}
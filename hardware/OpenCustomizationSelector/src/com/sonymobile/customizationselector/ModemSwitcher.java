@@ -14,12 +14,12 @@ public class ModemSwitcher {
 
     private static final String TAG = "ModemSwitcher";
 
-    private static final int MODEM_COMMAND_UNIT = 2405;
+    static final int MODEM_COMMAND_UNIT = 2405;
     private static final int MODEM_MAGIC_COMMAND_LENGTH = 3;
     private static final byte MODEM_COMMAND_CHANGE = (byte) 1;
     private static final byte MODEM_MISC_TA_MAGIC1 = (byte) -16;
     private static final byte MODEM_MISC_TA_MAGIC2 = (byte) 122;
-    private static final int TA_FOTA_INTERNAL = 2404;
+    static final int TA_FOTA_INTERNAL = 2404;
 
     private static final String DEFAULT_MODEM = "default";
     private static final String RESET_MODEM_ST1 = "reset_modemst1";
@@ -32,8 +32,10 @@ public class ModemSwitcherActivity extends Activity {
     private void applyModem(String modemFileName) {
         CSLog.d(TAG, "selected modem is " + modemFileName);
 
-        if (mModemSwitcher.setModemConfiguration(ModemSwitcher.MODEM_FS_PATH + modemFileName))
+        if (mModemSwitcher.setModemConfiguration(ModemSwitcher.MODEM_FS_PATH + modemFileName)) {
+            CSLog.flush();
             getSystemService(PowerManager.class).reboot(getApplicationContext().getString(R.string.reboot_reason_modem_debug));
+        }
     }
 
     private void saveInitialModem(String initialModem) {
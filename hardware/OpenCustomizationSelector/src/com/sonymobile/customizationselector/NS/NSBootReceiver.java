@@ -7,6 +7,8 @@ import android.os.UserHandle;
 import android.provider.Settings;
 import com.sonymobile.customizationselector.CSLog;
 import com.sonymobile.customizationselector.CommonUtil;
+import com.sonymobile.customizationselector.Parser.ModemConfParser;
+import com.sonymobile.customizationselector.Parser.ProviderDatabase;
 
 public class NSBootReceiver extends BroadcastReceiver {
     private static final String TAG = "NSBootReceiver";
@@ -17,6 +19,9 @@ public class NSBootReceiver extends BroadcastReceiver {
             CSLog.e(TAG, "Context is null");
             return;
         }
+        // Have the provider databases and modem configs ready for the first evaluation after boot
+        ProviderDatabase.warmUp(context);
+        ModemConfParser.warmUp();
         if (Settings.System.getInt(context.getContentResolver(), "ns_service", 0) == 1) {
             if (CommonUtil.getSimSlotIndex(context, -1) == -1) {
                 CSLog.d(TAG, "Device is dual sim, but slot pref is invalid");
@@ -0,0 +1,87 @@
+package com.sonymobile.customizationselector;
+
+import com.sonymobile.customizationselector.Parser.ProviderOverlay;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scores the candidates of large operator groups (e.g. merged lab tables) in chunks on the common fork-join pool.
+ * <p>
+ * The result equals the sequential loop in {@link SimConfigId}: the first row with the highest count wins,
+ * so of two chunks with the same best count the lower one is taken.
+ */
+final class ParallelScorer {
+
+    /** Minimum number of candidates to score in parallel, smaller groups are not worth the overhead */
+    static final int THRESHOLD = 1024;
+    private static final int CHUNK_SIZE = 256;
+
+    private static final int NONE = -1;
+
+    private ParallelScorer() {
+    }
+
+    /** Best row of a range, packed as count in the upper and row in the lower 32 bits */
+    private static final class ScoreTask extends RecursiveTask<Long> {
+        private final ProviderGroup mGroup;
+        private final BitSet mImsiMatches;
+        private final SimInfo mSimInfo;
+        private final ProviderOverlay mOverlay;
+        private final int mFrom, mTo;
+
+        ScoreTask(ProviderGroup group, BitSet imsiMatches, SimInfo simInfo, ProviderOverlay overlay, int from, int to) {
+            mGroup = group;
+            mImsiMatches = imsiMatches;
+            mSimInfo = simInfo;
+            mOverlay = overlay;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (mTo - mFrom > CHUNK_SIZE) {
+                int mid = (mFrom + mTo) >>> 1;
+                ScoreTask upper = new ScoreTask(mGroup, mImsiMatches, mSimInfo, mOverlay, mid, mTo);
+                upper.fork();
+                long lower = new ScoreTask(mGroup, mImsiMatches, mSimInfo, mOverlay, mFrom, mid).compute();
+                long higher = upper.join();
+                // Ties go to the lower rows
+                return count(higher) > count(lower) ? higher : lower;
+            }
+            ProviderTable table = mGroup.getTable();
+            int bestRow = NONE, bestCount = Integer.MIN_VALUE;
+            for (int row = mFrom; row < mTo; row++) {
+                if (mOverlay != null && mOverlay.overrides(table.getSimConfigId(row)))
+                    continue;
+                int count = SimConfigId.score(table, row, mImsiMatches.get(row - mGroup.getFrom()), mSimInfo, false);
+                if (count > bestCount) {
+                    bestCount = count;
+                    bestRow = row;
+                }
+            }
+            return pack(bestCount, bestRow);
+        }
+    }
+
+    private static long pack(int count, int row) {
+        return ((long) count << 32) | (row & 0xFFFFFFFFL);
+    }
+
+    private static int count(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    /**
+     * Returns the first row of the group with the highest count if that exceeds {@code minCount}, else -1.
+     *
+     * @param overlay skip rows replaced by this overlay, may be null
+     */
+    static int findBest(ProviderGroup group, BitSet imsiMatches, SimInfo simInfo, ProviderOverlay overlay, int minCount) {
+        long best = ForkJoinPool.commonPool().invoke(
+                new ScoreTask(group, imsiMatches, simInfo, overlay, group.getFrom(), group.getTo()));
+        return count(best) > minCount ? (int) best : NONE;
+    }
+}
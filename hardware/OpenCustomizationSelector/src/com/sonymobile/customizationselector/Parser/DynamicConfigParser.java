@@ -6,6 +6,7 @@ import android.content.res.XmlResourceParser;
 import android.text.TextUtils;
 import com.sonymobile.customizationselector.CSLog;
 import com.sonymobile.customizationselector.R;
+import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
@@ -13,16 +14,64 @@ import java.util.HashMap;
 
 import static com.sonymobile.customizationselector.Parser.XmlConstants.*;
 
+/**
+ * Parser for the mapping of sim_config_id to config id.
+ * The first mapping of a sim_config_id (or {@link XmlConstants#ANY_SIM}) in the file is the one used.
+ */
 public class DynamicConfigParser {
 
     private static final String TAG = "DynamicConfigParser";
 
     private static final int RESOURCE_XML = R.xml.configuration_selectors;
 
-    public static HashMap<String, String> getConfiguration(Context context) {
-        String tag, configID = "";
+    /** Receives the mappings in file order */
+    interface MappingVisitor {
+        /** Returns false to stop parsing */
+        boolean visit(String simConfigId, String configId);
+    }
 
+    public static HashMap<String, String> getConfiguration(Context context) {
         HashMap<String, String> hashMap = new HashMap<>();
+        parse(context, (simConfigId, configId) -> {
+            hashMap.putIfAbsent(simConfigId, configId);
+            return true;
+        });
+        CSLog.d(TAG, "Configurations: {}", hashMap.size());
+        CSLog.v(TAG, "Configurations: {}", hashMap);
+        return hashMap;
+    }
+
+    /**
+     * Returns the config id mapped to the sim_config_id, else the one of {@link XmlConstants#ANY_SIM}, null if neither exists.
+     * Parsing stops at the mapping of the sim_config_id, nothing else is kept.
+     */
+    public static String findConfigId(Context context, String simConfigId) {
+        return findConfigId(context, simConfigId, true);
+    }
+
+    /**
+     * Returns the config id mapped to the sim_config_id, null if there is none.
+     *
+     * @param anySimFallback whether to return the one of {@link XmlConstants#ANY_SIM} if there is no mapping
+     */
+    public static String findConfigId(Context context, String simConfigId, boolean anySimFallback) {
+        // Exact match and anysim fallback
+        String[] found = new String[2];
+        parse(context, (id, configId) -> {
+            if (id.equals(simConfigId)) {
+                found[0] = configId;
+                return false;
+            }
+            if (anySimFallback && found[1] == null && ANY_SIM.equals(id))
+                found[1] = configId;
+            return true;
+        });
+        String configId = found[0] != null ? found[0] : found[1];
+        CSLog.d(TAG, "findConfigId - {}: {}", simConfigId, configId);
+        return configId;
+    }
+
+    private static void parse(Context context, MappingVisitor visitor) {
         if (context != null) {
             Resources resources = context.getResources();
             if (resources != null) {
@@ -36,29 +85,35 @@ public class DynamicConfigParser {
                 }
 
                 if (xml != null) {
-                    try {
-                        while (xml.next() != 1) {
-                            if (xml.getEventType() == 2) {
-                                tag = xml.getName();
-                                if (CONFIGURATION.equals(tag))
-                                    configID = fix(xml.getAttributeValue(null, CONFIG_ID));
-                                if (SIM_CONFIG_ID.equalsIgnoreCase(tag)) {
-                                    String value = fix(xml.nextText());
-                                    if (!TextUtils.isEmpty(configID))
-                                        hashMap.put(value, configID);
-                                }
-                                if (ANY_SIM.equalsIgnoreCase(tag) && !TextUtils.isEmpty(configID))
-                                    hashMap.put(ANY_SIM, configID);
-                            }
-                        }
-                    } catch (IOException | XmlPullParserException e2) {
-                        CSLog.e(TAG, "XML parsing failed.");
+                    parse(xml, visitor);
+                    xml.close();
+                }
+            }
+        }
+    }
+
+    /** Parse the configuration elements, also used for overlay files */
+    static void parse(XmlPullParser xml, MappingVisitor visitor) {
+        String tag, configID = "";
+        try {
+            boolean proceed = true;
+            while (proceed && xml.next() != 1) {
+                if (xml.getEventType() == 2) {
+                    tag = xml.getName();
+                    if (CONFIGURATION.equals(tag))
+                        configID = fix(xml.getAttributeValue(null, CONFIG_ID));
+                    if (SIM_CONFIG_ID.equalsIgnoreCase(tag)) {
+                        String value = fix(xml.nextText());
+                        if (!TextUtils.isEmpty(configID))
+                            proceed = visitor.visit(value, configID);
                     }
+                    if (ANY_SIM.equalsIgnoreCase(tag) && !TextUtils.isEmpty(configID))
+                        proceed = visitor.visit(ANY_SIM, configID);
                 }
-                CSLog.d(TAG, "Configurations: " + hashMap.toString());
             }
+        } catch (IOException | XmlPullParserException e2) {
+            CSLog.e(TAG, "XML parsing failed.");
         }
-        return hashMap;
     }
 
     private static String fix(String s) {
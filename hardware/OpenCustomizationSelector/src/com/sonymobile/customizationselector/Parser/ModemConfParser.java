@@ -2,11 +2,21 @@ package com.sonymobile.customizationselector.Parser;
 
 import android.os.Environment;
 import android.text.TextUtils;
+import com.sonymobile.customizationselector.BackgroundThread;
 import com.sonymobile.customizationselector.CSLog;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Resolves the modem variant of a config id from the modem.conf files.
+ * <p>
+ * The config directory is scanned once into an immutable {@link Catalog}, which is reused
+ * until the modification time of the directory changes (config directories added or removed).
+ */
 public class ModemConfParser {
 
     private static final String TAG = "ModemConfParser";
@@ -16,62 +26,105 @@ public class ModemConfParser {
     private static final String CONF_PATH = "/modem-config";
     private static final String OEM_PATH = "/oem";
 
-    public static String parseModemConf(String conf) {
-        CSLog.d(TAG, "setupFilePaths - configId: " + conf);
+    private static final Object sLock = new Object();
+    private static volatile Catalog sCatalog;
 
-        File oemDir = new File(OEM_PATH + CONF_PATH);
-        StringBuilder filePath = new StringBuilder();
+    /** Modem variants of one config directory */
+    private static final class Catalog {
+        final File root;
+        final long lastModified;
+        // From the modem.conf in the root, used if the config id has none
+        final String defaultModem;
+        final Map<String, String> modems;
 
-        if (oemDir.exists() && oemDir.isDirectory())
-            filePath.append(oemDir.toString());
-        else {
-            filePath.append(Environment.getRootDirectory());
-            filePath.append(LEGACY_PATH);
+        Catalog(File root) {
+            this.root = root;
+            lastModified = root.lastModified();
+            defaultModem = readModem(new File(root + MODEM_CONF));
+            Map<String, String> modems = new HashMap<>();
+            File[] dirs = root.listFiles(File::isDirectory);
+            if (dirs != null) {
+                for (File dir : dirs) {
+                    File modemFile = new File(dir + MODEM_CONF);
+                    if (modemFile.exists())
+                        modems.put(dir.getName(), readModem(modemFile));
+                }
+            }
+            this.modems = Collections.unmodifiableMap(modems);
         }
-        if (!TextUtils.isEmpty(conf)) {
-            filePath.append("/");
-            filePath.append(conf);
+
+        boolean isValid(File root) {
+            return this.root.equals(root) && lastModified == root.lastModified();
         }
-        filePath.append(MODEM_CONF);
-
-        File modemFileName = new File(filePath.toString());
-        if (!modemFileName.exists() && !TextUtils.isEmpty(conf)) {
-            CSLog.d(TAG, "setupFilePaths - Not found: " + modemFileName.getAbsoluteFile());
-            if (oemDir.exists() && oemDir.isDirectory())
-                modemFileName = new File(oemDir + MODEM_CONF);
-            else
-                modemFileName = new File(Environment.getRootDirectory() + LEGACY_PATH + MODEM_CONF);
+    }
+
+    private static File getConfigDir() {
+        File oemDir = new File(OEM_PATH + CONF_PATH);
+        if (oemDir.isDirectory())
+            return oemDir;
+        return new File(Environment.getRootDirectory() + LEGACY_PATH);
+    }
+
+    private static Catalog getCatalog() {
+        File root = getConfigDir();
+        Catalog catalog = sCatalog;
+        if (catalog != null && catalog.isValid(root))
+            return catalog;
+        synchronized (sLock) {
+            catalog = sCatalog;
+            if (catalog == null || !catalog.isValid(root)) {
+                long start = System.currentTimeMillis();
+                catalog = new Catalog(root);
+                sCatalog = catalog;
+                CSLog.d(TAG, "Scanned {}: {} configs in {} ms", root, catalog.modems.size(), System.currentTimeMillis() - start);
+            }
         }
-        CSLog.d(TAG, "setupFilePaths - path: " + modemFileName.getAbsoluteFile());
-        return parseModemFileName(modemFileName);
+        return catalog;
+    }
+
+    /**
+     * Returns a value that changes with the modem config catalog, e.g. when the OEM image is flashed.
+     * Cheap, the directory is not scanned for this.
+     */
+    public static String getVersion() {
+        File root = getConfigDir();
+        return root + ":" + root.lastModified();
     }
 
-    private static String parseModemFileName(File modemFile) {
+    /** Scan the config directory in the background so the first evaluation finds it ready */
+    public static void warmUp() {
+        BackgroundThread.post(ModemConfParser::getCatalog);
+    }
+
+    public static String parseModemConf(String conf) {
+        CSLog.d(TAG, "setupFilePaths - configId: " + conf);
+
+        Catalog catalog = getCatalog();
+        String modemVariant = TextUtils.isEmpty(conf) ? null : catalog.modems.get(conf);
+        if (modemVariant == null) {
+            if (!TextUtils.isEmpty(conf))
+                CSLog.d(TAG, "setupFilePaths - Not found: " + catalog.root + "/" + conf + MODEM_CONF);
+            modemVariant = catalog.defaultModem;
+        }
+        CSLog.d(TAG, "Parsed modem: '" + modemVariant + "'");
+        return modemVariant;
+    }
+
+    /** Returns the first line of the file, empty if it does not exist or cannot be read */
+    private static String readModem(File modemFile) {
         String modemVariant = "";
-        if (modemFile == null || !modemFile.exists())
+        if (!modemFile.exists())
             return modemVariant;
 
-        BufferedReader br = null;
-        try {
-            br = new BufferedReader(new InputStreamReader(new FileInputStream(modemFile), StandardCharsets.UTF_8));
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(modemFile), StandardCharsets.UTF_8))) {
             String line = br.readLine();
             if (line != null)
                 modemVariant = line.trim();
-            else
-                modemVariant = "";
         } catch (FileNotFoundException e) {
             CSLog.w(TAG, "File not found: " + modemFile);
         } catch (IOException e) {
             CSLog.e(TAG, "IOException: " + modemFile, e);
-        } finally {
-            try {
-                if (br != null)
-                    br.close();
-            } catch (IOException e) {
-                CSLog.e(TAG, "IOException: while closing reader", e);
-            }
         }
-        CSLog.d(TAG, "Parsed modem: '" + modemVariant + "'");
         return modemVariant;
     }
 }
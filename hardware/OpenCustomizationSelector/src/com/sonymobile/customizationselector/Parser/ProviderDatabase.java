@@ -0,0 +1,204 @@
+package com.sonymobile.customizationselector.Parser;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.os.Build;
+import com.sonymobile.customizationselector.BackgroundThread;
+import com.sonymobile.customizationselector.CSLog;
+import com.sonymobile.customizationselector.ProviderGroup;
+import com.sonymobile.customizationselector.ProviderTable;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.sonymobile.customizationselector.Parser.XmlConstants.ANY_SIM;
+
+/**
+ * Process-wide cache of the parsed service provider and configuration databases.
+ * <p>
+ * Uses the memory-mapped {@link ProviderImage} compiled at build time if it is installed and was verified to
+ * match the resources, else the provider XML is parsed lazily on first use and shared read-only afterwards.
+ * The image is only an accelerator: the resources are what overlays apply to, so on the first start of a build
+ * they are parsed and the image is checked against them, the outcome is remembered for the build.
+ * Without the image config ids are looked up by streaming the configuration XML, see {@link DynamicConfigParser#findConfigId},
+ * and the results are kept, so the XML is read once per sim_config_id and database.
+ * The {@link ProviderOverlay} is merged on top by the callers, its config mappings here.
+ * A package update restarts the process, a change of the resource qualifiers (MCC, MNC, locale)
+ * is detected on access and triggers a reload.
+ */
+public final class ProviderDatabase {
+
+    private static final String TAG = "ProviderDatabase";
+
+    private static final Object sLock = new Object();
+    private static volatile ProviderDatabase sInstance;
+
+    // Either the image or the parsed XML is set
+    private final ProviderImage mImage;
+    private final ServiceProviderIndex mProviders;
+    private final Context mContext;
+    private final Configuration mResConfig;
+    // Config ids found in the XML so far, NO_CONFIG_ID if there is none. Only used without the image
+    private final ConcurrentHashMap<String, String> mConfigIds = new ConcurrentHashMap<>();
+    private static final String NO_CONFIG_ID = "";
+
+    private static final String PREFERENCES = "provider_image";
+    private static final String KEY_VERIFIED = "verified";
+
+    private ProviderDatabase(Context context) {
+        mContext = context;
+        ProviderImage image = ProviderImage.open(new File(ProviderImage.IMAGE_FILE));
+        ServiceProviderIndex providers = null;
+        if (image == null || !isVerified(context, image)) {
+            providers = ServiceProvidersParser.getServiceProviderIndex(context);
+            if (image != null)
+                verify(context, image, providers);
+            image = null;
+        }
+        mImage = image;
+        mProviders = providers;
+        mResConfig = new Configuration(context.getResources().getConfiguration());
+    }
+
+    /** Returns the cached databases, parsing them if not done yet or the resources changed */
+    public static ProviderDatabase get(Context context) {
+        ProviderOverlay.start(context);
+        ProviderDatabase db = sInstance;
+        if (db != null && db.isValid(context))
+            return db;
+        synchronized (sLock) {
+            db = sInstance;
+            if (db == null || !db.isValid(context)) {
+                long start = System.currentTimeMillis();
+                db = new ProviderDatabase(context.getApplicationContext());
+                sInstance = db;
+                CSLog.d(TAG, "Loaded {} providers from {} in {} ms", db.getProviderCount(),
+                        db.mImage != null ? "image" : "XML", System.currentTimeMillis() - start);
+            }
+        }
+        return db;
+    }
+
+    /** Parse the databases in the background so the first evaluation finds them ready */
+    public static void warmUp(Context context) {
+        final Context appContext = context.getApplicationContext();
+        BackgroundThread.post(() -> get(appContext));
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.createDeviceProtectedStorageContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /** Identifies the image and the resources it was checked against */
+    private static String getImageStamp(Context context) {
+        File imageFile = new File(ProviderImage.IMAGE_FILE);
+        return imageFile.length() + ":" + imageFile.lastModified() + ":" + Build.TIME + ":" + getPackageUpdateTime(context);
+    }
+
+    private static boolean isVerified(Context context, ProviderImage image) {
+        return getImageStamp(context).equals(getPreferences(context).getString(KEY_VERIFIED, null));
+    }
+
+    /** Compare the image with the parsed resources, a match is remembered so the next start uses the image */
+    private static void verify(Context context, ProviderImage image, ServiceProviderIndex providers) {
+        ProviderTable table = providers.getTable();
+        long digest = ProviderDbFormat.DIGEST_SEED;
+        for (int row = 0; row < table.size(); row++) {
+            digest = ProviderDbFormat.digest(digest, table.getKey(row));
+            digest = ProviderDbFormat.digest(digest, table.getSimConfigId(row));
+            digest = ProviderDbFormat.digest(digest, table.getServiceProvider(row));
+            digest = ProviderDbFormat.digest(digest, table.getIMSI(row));
+            digest = ProviderDbFormat.digest(digest, table.getGid1(row));
+            digest = ProviderDbFormat.digest(digest, table.getGid2(row));
+        }
+        for (Map.Entry<String, String> config : new TreeMap<>(DynamicConfigParser.getConfiguration(context)).entrySet()) {
+            digest = ProviderDbFormat.digest(digest, config.getKey());
+            digest = ProviderDbFormat.digest(digest, config.getValue());
+        }
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        if (digest == image.getDigest()) {
+            CSLog.i(TAG, "Provider image matches the resources");
+            editor.putString(KEY_VERIFIED, getImageStamp(context));
+        } else {
+            CSLog.w(TAG, "Provider image differs from the resources (" + image.getProviderCount() + " vs " + table.size()
+                    + " providers), using the resources");
+            editor.remove(KEY_VERIFIED);
+        }
+        editor.apply();
+    }
+
+    public static void invalidate() {
+        sInstance = null;
+    }
+
+    private static long getPackageUpdateTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns a value that changes whenever the content of the databases may have changed.
+     * Cheap, the databases are not loaded for this.
+     */
+    public static String getVersion(Context context) {
+        ProviderOverlay.start(context);
+        String overlay = "|overlay:" + ProviderOverlay.get().getVersion();
+        // Whether the image is used depends on the resources, so both are part of the version
+        File imageFile = new File(ProviderImage.IMAGE_FILE);
+        String image = imageFile.isFile() ? "image:" + imageFile.length() + ":" + imageFile.lastModified() + "|" : "";
+        return image + "xml:" + getPackageUpdateTime(context) + ":" + Build.TIME + overlay;
+    }
+
+    /** Whether the resource qualifiers the XML can depend on are unchanged, other changes like rotation do not matter */
+    private boolean isValid(Context context) {
+        Configuration config = context.getApplicationContext().getResources().getConfiguration();
+        return config.mcc == mResConfig.mcc && config.mnc == mResConfig.mnc && config.getLocales().equals(mResConfig.getLocales());
+    }
+
+    /** Returns the providers of the operator in database order */
+    public ProviderGroup getCandidates(String mcc, String mnc) {
+        return mImage != null ? mImage.get(mcc, mnc) : mProviders.get(mcc, mnc);
+    }
+
+    /**
+     * Returns the config id mapped to the sim_config_id, else the one of {@link XmlConstants#ANY_SIM},
+     * null if there is none. A mapping of the overlay wins over the built-in one of the same kind.
+     */
+    public String resolveConfigId(String simConfigId) {
+        String id = simConfigId != null ? simConfigId : "";
+        ProviderOverlay overlay = ProviderOverlay.get();
+        String configId = overlay.getConfigId(id);
+        if (configId != null)
+            return configId;
+        String anySim = overlay.getConfigId(ANY_SIM);
+        if (mImage == null) {
+            configId = lookUpConfigId(id);
+            if (configId != null)
+                return configId;
+            return anySim != null ? anySim : lookUpConfigId(ANY_SIM);
+        }
+        configId = mImage.getConfigId(id);
+        if (configId != null)
+            return configId;
+        return anySim != null ? anySim : mImage.getConfigId(ANY_SIM);
+    }
+
+    private String lookUpConfigId(String simConfigId) {
+        String configId = mConfigIds.computeIfAbsent(simConfigId, id -> {
+            String found = DynamicConfigParser.findConfigId(mContext, id, false);
+            return found != null ? found : NO_CONFIG_ID;
+        });
+        return configId.isEmpty() ? null : configId;
+    }
+
+    private int getProviderCount() {
+        return mImage != null ? mImage.getProviderCount() : mProviders.size();
+    }
+}
@@ -0,0 +1,114 @@
+package com.sonymobile.customizationselector.Parser;
+
+import java.util.Locale;
+
+/**
+ * Layout of the binary provider database written by the host-side ProviderDbCompiler
+ * and read by {@link ProviderImage}. Also compiled into the host tool, so plain Java only.
+ * <p>
+ * All values are big endian ints. After the header follow
+ * <ul>
+ * <li>provider table: {@link #PROVIDER_SIZE} byte records sorted by operator key, parse order within a key</li>
+ * <li>config table: {@link #CONFIG_SIZE} byte records (sim_config_id, config_id) sorted by the unsigned UTF-8 bytes of the sim_config_id</li>
+ * <li>string pool: each string is a 2 byte length followed by its UTF-8 bytes, equal strings are stored once</li>
+ * </ul>
+ * Strings are referenced by their offset in the pool, {@link #NO_STRING} stands for an unset value.
+ * <p>
+ * The header holds a {@link #digest} of the compiled content, so the app can check the image against
+ * the (possibly overlaid) resources it was meant to replace.
+ */
+public final class ProviderDbFormat {
+
+    public static final int MAGIC = 0x43535044; // "CSPD"
+    public static final int VERSION = 2;
+
+    // magic, version, provider count, config count, provider table, config table, string pool offset and size, digest
+    public static final int HEADER_SIZE = 10 * 4;
+    public static final int OFFSET_PROVIDER_COUNT = 8;
+    public static final int OFFSET_CONFIG_COUNT = 12;
+    public static final int OFFSET_PROVIDERS = 16;
+    public static final int OFFSET_CONFIGS = 20;
+    public static final int OFFSET_STRINGS = 24;
+    public static final int OFFSET_STRINGS_SIZE = 28;
+    public static final int OFFSET_DIGEST = 32;
+
+    // key, sim_config_id, sp, imsi, gid1, gid2
+    public static final int PROVIDER_SIZE = 6 * 4;
+    public static final int FIELD_KEY = 0;
+    public static final int FIELD_SIM_CONFIG_ID = 4;
+    public static final int FIELD_SP = 8;
+    public static final int FIELD_IMSI = 12;
+    public static final int FIELD_GID1 = 16;
+    public static final int FIELD_GID2 = 20;
+
+    public static final int CONFIG_SIZE = 2 * 4;
+
+    public static final int NO_STRING = -1;
+
+    /**
+     * Start value of a content digest: FNV-1a over the key and the strings of every provider in table order,
+     * followed by every (sim_config_id, config_id) mapping ordered by {@link String#compareTo}.
+     */
+    public static final long DIGEST_SEED = 0xcbf29ce484222325L;
+    private static final long DIGEST_PRIME = 0x100000001b3L;
+
+    private ProviderDbFormat() {
+    }
+
+    /**
+     * Pack MCC and MNC into one int, the MNC length is part of the key so "01" and "001" differ.
+     *
+     * @return the key, -1 if either value is not a 3 digit MCC or 2-3 digit MNC
+     */
+    public static int key(String mcc, String mnc) {
+        if (mcc == null || mnc == null || mcc.length() != 3 || mnc.length() < 2 || mnc.length() > 3)
+            return -1;
+        int value = digits(mcc);
+        int mncValue = digits(mnc);
+        if (value < 0 || mncValue < 0)
+            return -1;
+        return value * 10000 + (mnc.length() == 3 ? 1000 : 0) + mncValue;
+    }
+
+    /** Returns the MCC of a {@link #key} */
+    public static String mcc(int key) {
+        return String.format(Locale.ROOT, "%03d", key / 10000);
+    }
+
+    /** Returns the MNC of a {@link #key} */
+    public static String mnc(int key) {
+        int mnc = key % 10000;
+        return mnc >= 1000 ? String.format(Locale.ROOT, "%03d", mnc - 1000) : String.format(Locale.ROOT, "%02d", mnc);
+    }
+
+    public static long digest(long hash, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            hash ^= (value >>> shift) & 0xFF;
+            hash *= DIGEST_PRIME;
+        }
+        return hash;
+    }
+
+    /** Add the string, null and empty differ */
+    public static long digest(long hash, String value) {
+        if (value == null)
+            return digest(hash, NO_STRING);
+        hash = digest(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= DIGEST_PRIME;
+        }
+        return hash;
+    }
+
+    private static int digits(String s) {
+        int value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
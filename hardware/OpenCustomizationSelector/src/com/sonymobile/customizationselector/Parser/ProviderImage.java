@@ -0,0 +1,167 @@
+package com.sonymobile.customizationselector.Parser;
+
+import com.sonymobile.customizationselector.CSLog;
+import com.sonymobile.customizationselector.ProviderGroup;
+import com.sonymobile.customizationselector.ProviderTable;
+import com.sonymobile.customizationselector.SimCombination;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.sonymobile.customizationselector.Parser.ProviderDbFormat.*;
+
+/**
+ * Read side of the binary provider database built from the XML files at build time, see {@link ProviderDbFormat}.
+ * <p>
+ * The file is memory-mapped and searched in place. Only the providers of a looked-up operator are
+ * turned into a {@link ProviderGroup}, which is kept so its patterns are compiled once.
+ */
+final class ProviderImage {
+
+    private static final String TAG = "ProviderImage";
+
+    static final String IMAGE_FILE = "/system_ext/etc/customization_selector/providers.db";
+
+    private final ByteBuffer mImage;
+    private final int mProviderCount, mConfigCount;
+    private final int mProviders, mConfigs, mStrings, mStringsSize;
+    private final ConcurrentHashMap<Integer, ProviderGroup> mGroups = new ConcurrentHashMap<>();
+
+    private ProviderImage(ByteBuffer image) throws IOException {
+        mImage = image;
+        if (image.capacity() < HEADER_SIZE || image.getInt(0) != MAGIC)
+            throw new IOException("Not a provider database");
+        if (image.getInt(4) != VERSION)
+            throw new IOException("Unsupported version " + image.getInt(4));
+        mProviderCount = image.getInt(OFFSET_PROVIDER_COUNT);
+        mConfigCount = image.getInt(OFFSET_CONFIG_COUNT);
+        mProviders = image.getInt(OFFSET_PROVIDERS);
+        mConfigs = image.getInt(OFFSET_CONFIGS);
+        mStrings = image.getInt(OFFSET_STRINGS);
+        mStringsSize = image.getInt(OFFSET_STRINGS_SIZE);
+        if (mProviders + (long) mProviderCount * PROVIDER_SIZE > image.capacity()
+                || mConfigs + (long) mConfigCount * CONFIG_SIZE > image.capacity()
+                || mStrings + (long) mStringsSize > image.capacity())
+            throw new IOException("Truncated provider database");
+    }
+
+    /** Map the image, returns null if it does not exist or is invalid */
+    static ProviderImage open(File file) {
+        if (!file.isFile())
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return new ProviderImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            CSLog.e(TAG, "Failed to open " + file, e);
+            return null;
+        }
+    }
+
+    int getProviderCount() {
+        return mProviderCount;
+    }
+
+    int getConfigCount() {
+        return mConfigCount;
+    }
+
+    /** Returns the digest of the compiled content, see {@link ProviderDbFormat#DIGEST_SEED} */
+    long getDigest() {
+        return mImage.getLong(OFFSET_DIGEST);
+    }
+
+    /** Returns the providers of the operator in parse order */
+    ProviderGroup get(String mcc, String mnc) {
+        int key = ProviderDbFormat.key(mcc, mnc);
+        if (key < 0)
+            return ProviderGroup.EMPTY;
+        return mGroups.computeIfAbsent(key, this::createGroup);
+    }
+
+    private ProviderGroup createGroup(int key) {
+        // Find the first record with the key
+        int low = 0, high = mProviderCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (providerKey(mid) < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        List<SimCombination> providers = new ArrayList<>();
+        for (int i = low; i < mProviderCount && providerKey(i) == key; i++)
+            providers.add(createCombination(i));
+        if (providers.isEmpty())
+            return ProviderGroup.EMPTY;
+        ProviderTable table = ProviderTable.create(providers);
+        return new ProviderGroup(table, 0, table.size());
+    }
+
+    /** Returns the config id for the sim_config_id, null if there is none */
+    String getConfigId(String simConfigId) {
+        byte[] key = simConfigId.getBytes(StandardCharsets.UTF_8);
+        int low = 0, high = mConfigCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = mConfigs + mid * CONFIG_SIZE;
+            int cmp = compareString(mImage.getInt(record), key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return string(mImage.getInt(record + 4));
+        }
+        return null;
+    }
+
+    private int providerKey(int index) {
+        return mImage.getInt(mProviders + index * PROVIDER_SIZE + FIELD_KEY);
+    }
+
+    private SimCombination createCombination(int index) {
+        int record = mProviders + index * PROVIDER_SIZE;
+        int key = mImage.getInt(record + FIELD_KEY);
+        SimCombination simCombo = new SimCombination();
+        simCombo.setSimConfigId(string(mImage.getInt(record + FIELD_SIM_CONFIG_ID)));
+        simCombo.setMCC(ProviderDbFormat.mcc(key));
+        simCombo.setMNC(ProviderDbFormat.mnc(key));
+        simCombo.setServiceProvider(string(mImage.getInt(record + FIELD_SP)));
+        simCombo.setIMSI(string(mImage.getInt(record + FIELD_IMSI)));
+        simCombo.setGid1(string(mImage.getInt(record + FIELD_GID1)));
+        simCombo.setGid2(string(mImage.getInt(record + FIELD_GID2)));
+        return simCombo;
+    }
+
+    private String string(int offset) {
+        if (offset == NO_STRING)
+            return null;
+        int start = mStrings + offset;
+        int length = mImage.getShort(start) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = mImage.get(start + 2 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Compare the pooled string with {@code key} by unsigned bytes, the order of the config table */
+    private int compareString(int offset, byte[] key) {
+        int start = mStrings + offset;
+        int length = mImage.getShort(start) & 0xFFFF;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = (mImage.get(start + 2 + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return length - key.length;
+    }
+}
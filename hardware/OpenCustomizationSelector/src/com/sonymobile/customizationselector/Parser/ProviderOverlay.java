@@ -0,0 +1,199 @@
+package com.sonymobile.customizationselector.Parser;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.util.Xml;
+import com.sonymobile.customizationselector.BackgroundThread;
+import com.sonymobile.customizationselector.CSLog;
+import com.sonymobile.customizationselector.ProviderGroup;
+import com.sonymobile.customizationselector.SimCombination;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Service providers and configuration mappings from XML fragments in an overlay directory, merged on top of the built-in tables.
+ * <p>
+ * Every *.xml file in {@code files/overlay} of the device protected storage may contain service_provider_sim_config
+ * and configuration elements in the format of the resources. The directory is watched, on a change only modified files
+ * are parsed again and the new overlay is swapped in atomically, so an evaluation never waits for a reload.
+ * Instances are immutable.
+ */
+public final class ProviderOverlay {
+
+    private static final String TAG = "ProviderOverlay";
+
+    private static final String OVERLAY_DIR = "overlay";
+    private static final String FRAGMENT_SUFFIX = ".xml";
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+
+    private static final ProviderOverlay EMPTY = new ProviderOverlay(Collections.emptyMap());
+
+    private static final Object sLock = new Object();
+    private static final AtomicBoolean sReindexPending = new AtomicBoolean();
+    private static volatile ProviderOverlay sCurrent = EMPTY;
+    private static volatile File sDir;
+    // Watching stops when the observer is collected
+    private static FileObserver sObserver;
+
+    /** Parsed content of one file */
+    private static final class Fragment {
+        final long lastModified, length;
+        final List<SimCombination> providers;
+        final Map<String, String> configurations;
+
+        Fragment(File file) {
+            lastModified = file.lastModified();
+            length = file.length();
+            // Fragments are small, parse once per kind of element
+            List<SimCombination> providers = new ArrayList<>();
+            Map<String, String> configurations = new LinkedHashMap<>();
+            try {
+                parse(file, xml -> providers.addAll(ServiceProvidersParser.parse(xml)));
+                parse(file, xml -> DynamicConfigParser.parse(xml, (simConfigId, configId) -> {
+                    configurations.putIfAbsent(simConfigId, configId);
+                    return true;
+                }));
+            } catch (IOException | XmlPullParserException e) {
+                CSLog.e(TAG, "Failed to read " + file, e);
+            }
+            this.providers = providers;
+            this.configurations = configurations;
+        }
+
+        private interface Reader {
+            void read(XmlPullParser xml);
+        }
+
+        private static void parse(File file, Reader reader) throws IOException, XmlPullParserException {
+            try (FileInputStream in = new FileInputStream(file)) {
+                XmlPullParser xml = Xml.newPullParser();
+                xml.setInput(in, StandardCharsets.UTF_8.name());
+                reader.read(xml);
+            }
+        }
+    }
+
+    // By file name, which is the merge order
+    private final Map<String, Fragment> mFragments;
+    private final ServiceProviderIndex mProviders;
+    private final Set<String> mSimConfigIds = new HashSet<>();
+    private final Map<String, String> mConfigurations = new HashMap<>();
+    private final String mVersion;
+
+    private ProviderOverlay(Map<String, Fragment> fragments) {
+        mFragments = fragments;
+        List<SimCombination> providers = new ArrayList<>();
+        StringBuilder version = new StringBuilder();
+        for (Map.Entry<String, Fragment> entry : fragments.entrySet()) {
+            Fragment fragment = entry.getValue();
+            providers.addAll(fragment.providers);
+            for (Map.Entry<String, String> mapping : fragment.configurations.entrySet())
+                mConfigurations.putIfAbsent(mapping.getKey(), mapping.getValue());
+            version.append(entry.getKey()).append(':').append(fragment.lastModified).append(':').append(fragment.length).append(';');
+        }
+        for (SimCombination simCombo : providers)
+            mSimConfigIds.add(simCombo.getSimConfigId());
+        mProviders = new ServiceProviderIndex(providers);
+        mVersion = version.toString();
+    }
+
+    /** Returns the current overlay, empty until {@link #start(Context)} was called */
+    public static ProviderOverlay get() {
+        return sCurrent;
+    }
+
+    /** Index the overlay directory and watch it for changes, does nothing if already started */
+    public static void start(Context context) {
+        if (sDir != null)
+            return;
+        synchronized (sLock) {
+            if (sDir != null)
+                return;
+            File dir = new File(context.createDeviceProtectedStorageContext().getFilesDir(), OVERLAY_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs())
+                CSLog.w(TAG, "Cannot create " + dir);
+            sDir = dir;
+            reindex();
+            sObserver = new FileObserver(dir, EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (path != null && path.endsWith(FRAGMENT_SUFFIX))
+                        scheduleReindex();
+                }
+            };
+            sObserver.startWatching();
+        }
+    }
+
+    private static void scheduleReindex() {
+        // A burst of events (e.g. a copy) is handled by one reindex
+        if (sReindexPending.compareAndSet(false, true)) {
+            BackgroundThread.post(() -> {
+                sReindexPending.set(false);
+                reindex();
+            });
+        }
+    }
+
+    private static void reindex() {
+        File[] files = sDir.listFiles((dir, name) -> name.endsWith(FRAGMENT_SUFFIX));
+        Map<String, Fragment> previous = sCurrent.mFragments;
+        Map<String, Fragment> fragments = new TreeMap<>();
+        int parsed = 0;
+        if (files != null) {
+            for (File file : files) {
+                Fragment fragment = previous.get(file.getName());
+                if (fragment == null || fragment.lastModified != file.lastModified() || fragment.length != file.length()) {
+                    fragment = new Fragment(file);
+                    parsed++;
+                }
+                fragments.put(file.getName(), fragment);
+            }
+        }
+        if (parsed == 0 && fragments.keySet().equals(previous.keySet()))
+            return;
+        ProviderOverlay overlay = fragments.isEmpty() ? EMPTY : new ProviderOverlay(Collections.unmodifiableMap(fragments));
+        sCurrent = overlay;
+        CSLog.i(TAG, "Overlay reloaded: {} fragments ({} parsed), {} providers", fragments.size(), parsed, overlay.mProviders.size());
+    }
+
+    public boolean isEmpty() {
+        return mFragments.isEmpty();
+    }
+
+    /** Returns a value that changes whenever the content of the overlay changes */
+    public String getVersion() {
+        return mVersion;
+    }
+
+    /** Returns the overlay providers of the operator in merge order */
+    public ProviderGroup getCandidates(String mcc, String mnc) {
+        return mProviders.get(mcc, mnc);
+    }
+
+    /** Whether the overlay defines providers for the sim_config_id, which replace the built-in ones */
+    public boolean overrides(String simConfigId) {
+        return mSimConfigIds.contains(simConfigId);
+    }
+
+    /** Returns the config id the overlay maps the sim_config_id (or {@link XmlConstants#ANY_SIM}) to, null if none */
+    public String getConfigId(String simConfigId) {
+        return mConfigurations.get(simConfigId);
+    }
+}
@@ -0,0 +1,47 @@
+package com.sonymobile.customizationselector.Parser;
+
+import android.util.SparseArray;
+import com.sonymobile.customizationselector.ProviderGroup;
+import com.sonymobile.customizationselector.ProviderTable;
+import com.sonymobile.customizationselector.SimCombination;
+
+import java.util.List;
+
+/**
+ * Service providers grouped by MCC and MNC, keyed by {@link ProviderDbFormat#key(String, String)}.
+ * Entries without MCC or MNC can never match and are left out. The parse order is kept within a group.
+ */
+public final class ServiceProviderIndex {
+
+    private final ProviderTable mTable;
+    private final SparseArray<ProviderGroup> mByOperator = new SparseArray<>();
+
+    public ServiceProviderIndex(List<SimCombination> providers) {
+        mTable = ProviderTable.create(providers);
+        int row = 0;
+        while (row < mTable.size()) {
+            int key = mTable.getKey(row);
+            int end = row + 1;
+            while (end < mTable.size() && mTable.getKey(end) == key)
+                end++;
+            mByOperator.put(key, new ProviderGroup(mTable, row, end));
+            row = end;
+        }
+    }
+
+    /** Returns the providers for the operator in parse order, empty if there are none */
+    public ProviderGroup get(String mcc, String mnc) {
+        int key = ProviderDbFormat.key(mcc, mnc);
+        ProviderGroup group = key < 0 ? null : mByOperator.get(key);
+        return group != null ? group : ProviderGroup.EMPTY;
+    }
+
+    ProviderTable getTable() {
+        return mTable;
+    }
+
+    /** Returns the number of indexed providers */
+    public int size() {
+        return mTable.size();
+    }
+}
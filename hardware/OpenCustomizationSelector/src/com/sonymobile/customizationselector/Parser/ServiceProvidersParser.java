@@ -7,6 +7,7 @@ import android.text.TextUtils;
 import com.sonymobile.customizationselector.CSLog;
 import com.sonymobile.customizationselector.R;
 import com.sonymobile.customizationselector.SimCombination;
+import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
@@ -21,9 +22,7 @@ public class ServiceProvidersParser {
     private static final int RESOURCE_XML = R.xml.service_providers;
 
     public static List<SimCombination> getServiceProviders(Context context) {
-        String tag;
-        SimCombination simCombination = null;
-        ArrayList<SimCombination> arrayList = new ArrayList<>();
+        List<SimCombination> providers = new ArrayList<>();
 
         if (context != null) {
             Resources resources = context.getResources();
@@ -38,60 +37,75 @@ public class ServiceProvidersParser {
                 }
 
                 if (xml != null) {
-                    try {
-                        while (xml.next() != 1) {
-                            if (xml.getEventType() == 2) {
-                                tag = xml.getName();
-                                if (SERVICE_PROVIDER_SIM_CONFIG.equals(tag)) {
-                                    String value = fix(xml.getAttributeValue(null, SIM_CONFIG_ID));
-                                    if (!TextUtils.isEmpty(value)) {
-                                        simCombination = new SimCombination();
-                                        simCombination.setSimConfigId(value);
-                                        arrayList.add(simCombination);
-                                    }
-                                }
+                    providers = parse(xml);
+                    xml.close();
+                }
+                CSLog.d(TAG, "Number of service providers found: " + providers.size());
+            }
+        }
+        return providers;
+    }
 
-                                if (simCombination != null) {
-                                    if (MCC.equalsIgnoreCase(tag)) {
-                                        tag = fix(xml.nextText());
-                                        if (!TextUtils.isEmpty(tag))
-                                            simCombination.setMCC(tag);
-                                    } else if (MNC.equalsIgnoreCase(tag)) {
-                                        tag = fix(xml.nextText());
-                                        if (!TextUtils.isEmpty(tag))
-                                            simCombination.setMNC(tag);
-                                    } else if (SP.equalsIgnoreCase(tag)) {
-                                        tag = fix(xml.nextText());
-                                        if (!TextUtils.isEmpty(tag))
-                                            simCombination.setServiceProvider(tag);
-                                    } else if (IMSI.equalsIgnoreCase(tag)) {
-                                        tag = fix(xml.nextText());
-                                        if (!TextUtils.isEmpty(tag))
-                                            simCombination.setIMSI(tag);
-                                    } else if (GID1.equalsIgnoreCase(tag)) {
-                                        tag = fix(xml.nextText());
-                                        if (!TextUtils.isEmpty(tag))
-                                            simCombination.setGid1(tag);
-                                    } else if (GID2.equalsIgnoreCase(tag)) {
-                                        tag = fix(xml.nextText());
-                                        if (!TextUtils.isEmpty(tag))
-                                            simCombination.setGid2(tag);
-                                    }
-                                }
-                            }
+    /** Parse the service_provider_sim_config elements, also used for overlay files */
+    static List<SimCombination> parse(XmlPullParser xml) {
+        String tag;
+        SimCombination simCombination = null;
+        ArrayList<SimCombination> arrayList = new ArrayList<>();
+        try {
+            while (xml.next() != 1) {
+                if (xml.getEventType() == 2) {
+                    tag = xml.getName();
+                    if (SERVICE_PROVIDER_SIM_CONFIG.equals(tag)) {
+                        String value = fix(xml.getAttributeValue(null, SIM_CONFIG_ID));
+                        if (!TextUtils.isEmpty(value)) {
+                            simCombination = new SimCombination();
+                            simCombination.setSimConfigId(value);
+                            arrayList.add(simCombination);
+                        }
+                    }
+
+                    if (simCombination != null) {
+                        if (MCC.equalsIgnoreCase(tag)) {
+                            tag = fix(xml.nextText());
+                            if (!TextUtils.isEmpty(tag))
+                                simCombination.setMCC(tag);
+                        } else if (MNC.equalsIgnoreCase(tag)) {
+                            tag = fix(xml.nextText());
+                            if (!TextUtils.isEmpty(tag))
+                                simCombination.setMNC(tag);
+                        } else if (SP.equalsIgnoreCase(tag)) {
+                            tag = fix(xml.nextText());
+                            if (!TextUtils.isEmpty(tag))
+                                simCombination.setServiceProvider(tag);
+                        } else if (IMSI.equalsIgnoreCase(tag)) {
+                            tag = fix(xml.nextText());
+                            if (!TextUtils.isEmpty(tag))
+                                simCombination.setIMSI(tag);
+                        } else if (GID1.equalsIgnoreCase(tag)) {
+                            tag = fix(xml.nextText());
+                            if (!TextUtils.isEmpty(tag))
+                                simCombination.setGid1(tag);
+                        } else if (GID2.equalsIgnoreCase(tag)) {
+                            tag = fix(xml.nextText());
+                            if (!TextUtils.isEmpty(tag))
+                                simCombination.setGid2(tag);
                         }
-                    } catch (XmlPullParserException e) {
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
                     }
                 }
-                CSLog.d(TAG, "Number of service providers found: " + arrayList.size());
             }
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
         return arrayList;
     }
 
+    /** Returns the service providers indexed by MCC and MNC */
+    public static ServiceProviderIndex getServiceProviderIndex(Context context) {
+        return new ServiceProviderIndex(getServiceProviders(context));
+    }
+
     private static String fix(String s) {
         if (TextUtils.isEmpty(s))
             return "";
@@ -44,6 +44,7 @@ public class PreferenceReceiver extends BroadcastReceiver {
                 ModemSwitcher.reApplyModem(context);
             else if (apply == DISABLED)
                 ModemSwitcher.revertReApplyModem();
+            CSLog.flush();
             context.getSystemService(PowerManager.class).reboot(context.getString(R.string.reboot_reason));
         } else
             CSLog.d(TAG, "Invalid pref, returning ...");
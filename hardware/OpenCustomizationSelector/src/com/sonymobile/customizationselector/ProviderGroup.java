@@ -0,0 +1,49 @@
+package com.sonymobile.customizationselector;
+
+import java.util.BitSet;
+import java.util.Collections;
+
+/**
+ * The rows of one operator (MCC/MNC) in a {@link ProviderTable}, in database order,
+ * with their IMSI patterns compiled into an {@link ImsiTrie} on first use.
+ */
+public final class ProviderGroup {
+
+    public static final ProviderGroup EMPTY = new ProviderGroup(ProviderTable.create(Collections.emptyList()), 0, 0);
+
+    private final ProviderTable mTable;
+    private final int mFrom, mTo;
+    private volatile ImsiTrie mImsiTrie;
+
+    /** Rows [from, to) of the table */
+    public ProviderGroup(ProviderTable table, int from, int to) {
+        mTable = table;
+        mFrom = from;
+        mTo = to;
+    }
+
+    public ProviderTable getTable() {
+        return mTable;
+    }
+
+    /** First row of the group in {@link #getTable()} */
+    public int getFrom() {
+        return mFrom;
+    }
+
+    /** Row after the last one of the group */
+    public int getTo() {
+        return mTo;
+    }
+
+    /** Returns the rows, relative to {@link #getFrom()}, whose IMSI pattern matches */
+    public BitSet matchImsi(String imsi) {
+        ImsiTrie trie = mImsiTrie;
+        if (trie == null) {
+            // Building twice in a race is harmless, the result is the same
+            trie = new ImsiTrie(mTable, mFrom, mTo);
+            mImsiTrie = trie;
+        }
+        return trie.match(imsi);
+    }
+}
@@ -0,0 +1,199 @@
+package com.sonymobile.customizationselector;
+
+import com.sonymobile.customizationselector.Parser.ProviderDbFormat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static com.sonymobile.customizationselector.Parser.XmlConstants.NULL_VALUE;
+
+/**
+ * Read-only columnar store of service providers.
+ * <p>
+ * One row per provider, sorted by operator key ({@link ProviderDbFormat#key}) keeping the parse order
+ * within an operator. Strings are indexes into a deduplicated pool, {@link #NONE} if unset.
+ * Patterns are compiled when the table is built, so the first evaluation does not pay for it,
+ * and cached per pool entry.
+ */
+public final class ProviderTable {
+
+    private static final String TAG = "ProviderTable";
+
+    public static final int NONE = -1;
+
+    // Row flags
+    private static final byte SP_NULL = 1;
+    private static final byte SP_LITERAL = 1 << 1;
+
+    // Never matches, cached for invalid patterns
+    private static final Pattern INVALID = Pattern.compile("(?!)");
+
+    private final int[] mKeys;
+    private final int[] mSimConfigIds, mSPs, mIMSIs, mGid1s, mGid1Lowers, mGid2s;
+    private final byte[] mFlags;
+    private final String[] mPool;
+    private final Pattern[] mPatterns;
+
+    private ProviderTable(List<SimCombination> providers) {
+        List<SimCombination> rows = new ArrayList<>(providers.size());
+        for (SimCombination simCombo : providers) {
+            // Rows without a valid operator can never match
+            if (ProviderDbFormat.key(simCombo.getMCC(), simCombo.getMNC()) >= 0)
+                rows.add(simCombo);
+        }
+        // Stable, so the parse order is kept within an operator
+        rows.sort((a, b) -> Integer.compare(ProviderDbFormat.key(a.getMCC(), a.getMNC()), ProviderDbFormat.key(b.getMCC(), b.getMNC())));
+
+        int size = rows.size();
+        mKeys = new int[size];
+        mSimConfigIds = new int[size];
+        mSPs = new int[size];
+        mIMSIs = new int[size];
+        mGid1s = new int[size];
+        mGid1Lowers = new int[size];
+        mGid2s = new int[size];
+        mFlags = new byte[size];
+        Map<String, Integer> poolIndex = new HashMap<>();
+        List<String> pool = new ArrayList<>();
+        for (int row = 0; row < size; row++) {
+            SimCombination simCombo = rows.get(row);
+            mKeys[row] = ProviderDbFormat.key(simCombo.getMCC(), simCombo.getMNC());
+            mSimConfigIds[row] = intern(poolIndex, pool, simCombo.getSimConfigId());
+            mSPs[row] = intern(poolIndex, pool, simCombo.getServiceProvider());
+            mIMSIs[row] = intern(poolIndex, pool, simCombo.getIMSI());
+            mGid1s[row] = intern(poolIndex, pool, simCombo.getGid1());
+            mGid1Lowers[row] = intern(poolIndex, pool, simCombo.getGid1() != null ? simCombo.getGid1().toLowerCase() : null);
+            mGid2s[row] = intern(poolIndex, pool, simCombo.getGid2());
+            String sp = simCombo.getServiceProvider();
+            if (NULL_VALUE.equalsIgnoreCase(sp))
+                mFlags[row] |= SP_NULL;
+            else if (sp != null && isLiteral(sp))
+                mFlags[row] |= SP_LITERAL;
+        }
+        mPool = pool.toArray(new String[0]);
+        mPatterns = new Pattern[mPool.length];
+        for (int row = 0; row < size; row++) {
+            if (mSPs[row] != NONE && (mFlags[row] & (SP_NULL | SP_LITERAL)) == 0)
+                pattern(mSPs[row]);
+            if (mIMSIs[row] != NONE)
+                pattern(mIMSIs[row]);
+        }
+    }
+
+    /** Compact the parsed providers, the list is not referenced afterwards */
+    public static ProviderTable create(List<SimCombination> providers) {
+        return new ProviderTable(providers);
+    }
+
+    private static int intern(Map<String, Integer> poolIndex, List<String> pool, String s) {
+        if (s == null)
+            return NONE;
+        Integer index = poolIndex.get(s);
+        if (index == null) {
+            index = pool.size();
+            pool.add(s);
+            poolIndex.put(s, index);
+        }
+        return index;
+    }
+
+    private static boolean isLiteral(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != ' ' && c != '-' && c != '_' && c != '\'' && c != '&')
+                return false;
+        }
+        return true;
+    }
+
+    public int size() {
+        return mKeys.length;
+    }
+
+    /** Returns the first row of the operator, or where it would be inserted */
+    public int firstRow(int key) {
+        int low = 0, high = mKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mKeys[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    public int getKey(int row) {
+        return mKeys[row];
+    }
+
+    private String string(int index) {
+        return index == NONE ? null : mPool[index];
+    }
+
+    public String getSimConfigId(int row) {
+        return string(mSimConfigIds[row]);
+    }
+
+    public String getServiceProvider(int row) {
+        return string(mSPs[row]);
+    }
+
+    public String getIMSI(int row) {
+        return string(mIMSIs[row]);
+    }
+
+    public String getGid1(int row) {
+        return string(mGid1s[row]);
+    }
+
+    /** Returns the GID1 prefix in lower case */
+    public String getGid1Lower(int row) {
+        return string(mGid1Lowers[row]);
+    }
+
+    public String getGid2(int row) {
+        return string(mGid2s[row]);
+    }
+
+    /** Whether the SP is the special "null" value */
+    public boolean isServiceProviderNull(int row) {
+        return (mFlags[row] & SP_NULL) != 0;
+    }
+
+    /** Match the SP pattern against the SIM's SPN, not for the special "null" value */
+    public boolean matchesServiceProvider(int row, String spn) {
+        int sp = mSPs[row];
+        if (spn == null || sp == NONE || isServiceProviderNull(row))
+            return false;
+        if ((mFlags[row] & SP_LITERAL) != 0)
+            return mPool[sp].equals(spn);
+        return pattern(sp).matcher(spn).matches();
+    }
+
+    /** Returns the compiled IMSI pattern, null if the row has none */
+    public Pattern getIMSIPattern(int row) {
+        int imsi = mIMSIs[row];
+        return imsi == NONE ? null : pattern(imsi);
+    }
+
+    private Pattern pattern(int index) {
+        synchronized (mPatterns) {
+            Pattern pattern = mPatterns[index];
+            if (pattern == null) {
+                try {
+                    pattern = Pattern.compile(mPool[index]);
+                } catch (PatternSyntaxException e) {
+                    CSLog.e(TAG, "Invalid pattern: " + mPool[index], e);
+                    pattern = INVALID;
+                }
+                mPatterns[index] = pattern;
+            }
+            return pattern;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.sonymobile.customizationselector;
 
+/**
+ * One service provider entry as parsed, see {@link ProviderTable} for the form kept in memory.
+ */
 public final class SimCombination {
 
     private String mGid1 = null;
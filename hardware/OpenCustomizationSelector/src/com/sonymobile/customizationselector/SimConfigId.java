@@ -2,13 +2,11 @@ package com.sonymobile.customizationselector;
 
 import android.content.Context;
 import android.telephony.SubscriptionManager;
-import android.telephony.TelephonyManager;
 import android.text.TextUtils;
-import com.sonymobile.customizationselector.Parser.ServiceProvidersParser;
+import com.sonymobile.customizationselector.Parser.ProviderDatabase;
+import com.sonymobile.customizationselector.Parser.ProviderOverlay;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.regex.Pattern;
+import java.util.BitSet;
 
 import static com.sonymobile.customizationselector.Parser.XmlConstants.*;
 
@@ -16,118 +14,124 @@ public class SimConfigId {
 
     private static final String TAG = "SimConfigId";
 
-    private static final int MCC_LENGTH = 3;
-
     private final Context mContext;
 
     public SimConfigId(Context context) {
         mContext = context;
     }
 
-    public static HashMap<String, String> extractSimInfo(TelephonyManager tm, int subID) {
-        HashMap<String, String> hashMap = new HashMap<>();
-
-        String simOperator = tm.getSimOperator(subID);
-        String simOperatorName = tm.getSimOperatorName(subID);
-        String subscriberId = tm.getSubscriberId(subID);
-        String groupIdLevel1 = tm.getGroupIdLevel1(subID);
-        String simSerialNumber = tm.getSimSerialNumber(subID);
-
-        if (!TextUtils.isEmpty(simOperator) && !TextUtils.isEmpty(subscriberId)) {
-            simOperatorName = simOperatorName != null ? simOperatorName.replaceAll("[\n\r]", "") : "";
-            if (groupIdLevel1 == null)
-                groupIdLevel1 = "";
-            if (simSerialNumber == null)
-                simSerialNumber = "";
-            hashMap.put(MCC, simOperator.substring(0, MCC_LENGTH));
-            hashMap.put(MNC, simOperator.substring(MCC_LENGTH));
-            hashMap.put(SP, simOperatorName.trim());
-            hashMap.put(IMSI, subscriberId);
-            hashMap.put(GID1, groupIdLevel1);
-            hashMap.put(ICCID, simSerialNumber);
-            hashMap.put(SUBSCRIPTION, String.valueOf(subID));
-        }
-        return hashMap;
+    /** Best candidate so far */
+    private static final class Match {
+        String simConfigId = null;
+        int numberOfMatches = 0;
     }
 
-    private String getIdFromSimValues(HashMap<String, String> hashMap) {
-        return getMappingMatch(ServiceProvidersParser.getServiceProviders(mContext), hashMap);
+    private String getIdFromSimValues(SimInfo simInfo) {
+        // Candidates of other operators score 0 and can never be picked
+        ProviderGroup candidates = ProviderDatabase.get(mContext).getCandidates(simInfo.mcc, simInfo.mnc);
+        ProviderOverlay overlay = ProviderOverlay.get();
+        Match match = new Match();
+        // Overlay entries are scored first so they win ties, built-in entries they redefine are skipped
+        if (!overlay.isEmpty())
+            getMappingMatch(overlay.getCandidates(simInfo.mcc, simInfo.mnc), simInfo, null, match);
+        getMappingMatch(candidates, simInfo, overlay.isEmpty() ? null : overlay, match);
+        return match.simConfigId;
     }
 
-    private String getMappingMatch(List<SimCombination> list, HashMap<String, String> simParams) {
-        String simConfigId = null;
-        int numberOfMatches = 0;
-        for (SimCombination simCombo : list) {
-            int count = 0;
-            if (simCombo.getMCC() != null) {
-                if (simCombo.getMCC().equals(simParams.get(MCC))) {
-                    if (simCombo.getMNC() != null) {
-                        if (simCombo.getMNC().equals(simParams.get(MNC))) {
-                            CSLog.d(TAG, "getMappingMatch - mcc: " + simCombo.getMCC() + " mnc: " + simCombo.getMNC() + " for: " + simCombo.getSimConfigId());
-                            count++;
-                            if (simCombo.getServiceProvider() != null) {
-                                if (!matchOnSP(simCombo.getServiceProvider(), simParams.get(SP))) {
-                                    CSLog.d(TAG, "getMappingMatch - Go to next simCombination since there is no match on Service provider for: "
-                                            + simCombo.getSimConfigId());
-                                    count--;
-                                } else {
-                                    CSLog.d(TAG, "getMappingMatch - sp: " + simCombo.getServiceProvider() + " for: " + simCombo.getSimConfigId());
-                                    count++;
-                                }
-                            }
-                            if (simCombo.getIMSI() != null) {
-                                if (!matchOnImsi(simCombo.getIMSI(), simParams.get(IMSI))) {
-                                    CSLog.d(TAG, "getMappingMatch - Go to next simCombination since there is no match on IMSI for: " + simCombo.getSimConfigId());
-                                    count--;
-                                } else {
-                                    CSLog.d(TAG, "getMappingMatch - imsi: " + simCombo.getIMSI() + " for: " + simCombo.getSimConfigId());
-                                    count++;
-                                }
-                            }
-                            if (simCombo.getGid1() != null) {
-                                if (simParams.get(GID1) == null || !simParams.get(GID1).toLowerCase().startsWith(simCombo.getGid1().toLowerCase())) {
-                                    CSLog.d(TAG, "getMappingMatch - Go to next simCombination since there is no match on GID1 for: " + simCombo.getGid1());
-                                    count--;
-                                } else {
-                                    CSLog.d(TAG, "getMappingMatch - gid1: " + simCombo.getGid1() + " for: " + simCombo.getSimConfigId());
-                                    count++;
-                                }
-                            }
-                        }
-                    }
-                }
+    private void getMappingMatch(ProviderGroup group, SimInfo simInfo, ProviderOverlay overlay, Match match) {
+        ProviderTable table = group.getTable();
+        // All IMSI patterns of the operator in one pass
+        BitSet imsiMatches = group.matchImsi(simInfo.imsi);
+        if (group.getTo() - group.getFrom() >= ParallelScorer.THRESHOLD) {
+            int row = ParallelScorer.findBest(group, imsiMatches, simInfo, overlay, match.numberOfMatches);
+            if (row >= 0) {
+                match.numberOfMatches = score(table, row, imsiMatches.get(row - group.getFrom()), simInfo, false);
+                match.simConfigId = table.getSimConfigId(row);
+                CSLog.d(TAG, "Saving id: {} - nbr matches: {} (of {} candidates)", match.simConfigId, match.numberOfMatches,
+                        group.getTo() - group.getFrom());
+            }
+            return;
+        }
+        for (int row = group.getFrom(); row < group.getTo(); row++) {
+            if (overlay != null && overlay.overrides(table.getSimConfigId(row))) {
+                CSLog.d(TAG, "getMappingMatch - Skipping {}, replaced by the overlay", table.getSimConfigId(row));
+                continue;
             }
-            if (count > numberOfMatches) {
-                numberOfMatches = count;
-                simConfigId = simCombo.getSimConfigId();
-                CSLog.d(TAG, "Saving id: " + simConfigId + " - nbr matches: " + numberOfMatches);
+            int count = score(table, row, imsiMatches.get(row - group.getFrom()), simInfo, true);
+            if (count > match.numberOfMatches) {
+                match.numberOfMatches = count;
+                match.simConfigId = table.getSimConfigId(row);
+                CSLog.d(TAG, "Saving id: {} - nbr matches: {}", match.simConfigId, match.numberOfMatches);
             }
         }
-        return simConfigId;
     }
 
-    private boolean matchOnImsi(String pattern, String s) {
-        return s != null && Pattern.compile(pattern).matcher(s).matches();
+    /**
+     * Number of matching minus number of mismatching fields of the row, MCC/MNC always match.
+     *
+     * @param imsiMatch whether the IMSI pattern of the row matches, see {@link ProviderGroup#matchImsi}
+     * @param log       whether to log each field, off when scoring in parallel
+     */
+    static int score(ProviderTable table, int row, boolean imsiMatch, SimInfo simInfo, boolean log) {
+        // The group only holds rows of the SIM's MCC/MNC
+        if (log)
+            CSLog.d(TAG, "getMappingMatch - mcc: {} mnc: {} for: {}", simInfo.mcc, simInfo.mnc, table.getSimConfigId(row));
+        int count = 1;
+        if (table.getServiceProvider(row) != null) {
+            if (!matchOnSP(table, row, simInfo.sp)) {
+                if (log)
+                    CSLog.d(TAG, "getMappingMatch - Go to next simCombination since there is no match on Service provider for: {}",
+                            table.getSimConfigId(row));
+                count--;
+            } else {
+                if (log)
+                    CSLog.d(TAG, "getMappingMatch - sp: {} for: {}", table.getServiceProvider(row), table.getSimConfigId(row));
+                count++;
+            }
+        }
+        if (table.getIMSI(row) != null) {
+            if (!imsiMatch) {
+                if (log)
+                    CSLog.d(TAG, "getMappingMatch - Go to next simCombination since there is no match on IMSI for: {}", table.getSimConfigId(row));
+                count--;
+            } else {
+                if (log)
+                    CSLog.d(TAG, "getMappingMatch - imsi: {} for: {}", table.getIMSI(row), table.getSimConfigId(row));
+                count++;
+            }
+        }
+        if (table.getGid1(row) != null) {
+            if (!simInfo.gid1Lower.startsWith(table.getGid1Lower(row))) {
+                if (log)
+                    CSLog.d(TAG, "getMappingMatch - Go to next simCombination since there is no match on GID1 for: {}", table.getGid1(row));
+                count--;
+            } else {
+                if (log)
+                    CSLog.d(TAG, "getMappingMatch - gid1: {} for: {}", table.getGid1(row), table.getSimConfigId(row));
+                count++;
+            }
+        }
+        return count;
     }
 
-    private boolean matchOnSP(String pattern, String s) {
-        if (NULL_VALUE.equalsIgnoreCase(pattern))
+    private static boolean matchOnSP(ProviderTable table, int row, String s) {
+        if (table.isServiceProviderNull(row))
             return TextUtils.isEmpty(s) || NULL_VALUE.equalsIgnoreCase(s);
         else
-            return s != null && Pattern.compile(pattern).matcher(s).matches();
+            return table.matchesServiceProvider(row, s);
     }
 
     public String getId() {
-        String id = "";
-        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
-        int subId = CommonUtil.getDefaultSubId(mContext);
+        return getId(SimInfo.capture(mContext));
+    }
 
-        if (tm != null && subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
-            HashMap<String, String> simInfo = extractSimInfo(tm, subId);
+    public String getId(SimInfo simInfo) {
+        String id = "";
+        if (simInfo.subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
             CSLog.d(TAG, "***********************************");
-            CSLog.d(TAG, "extractSimInfo: " + simInfo.toString());
+            CSLog.d(TAG, "extractSimInfo: {}", simInfo);
             CSLog.d(TAG, "***********************************");
-            id = getIdFromSimValues(simInfo);
+            id = simInfo.isValid() ? getIdFromSimValues(simInfo) : null;
         }
 
         CSLog.d(TAG, "***********************************");
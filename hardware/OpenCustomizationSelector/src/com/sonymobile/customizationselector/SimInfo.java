@@ -0,0 +1,111 @@
+package com.sonymobile.customizationselector;
+
+import android.content.Context;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import com.sonymobile.customizationselector.Parser.ProviderDbFormat;
+
+import java.util.Objects;
+
+/**
+ * Immutable snapshot of the SIM values used for an evaluation.
+ * <p>
+ * Captured once per evaluation and passed to every consumer, so each value costs one call to the phone process.
+ * Unset values are empty strings, never null.
+ */
+public final class SimInfo {
+
+    private static final int MCC_LENGTH = 3;
+    private static final int MIN_MCC_MNC_LENGTH = 5;
+
+    /** No usable subscription */
+    public static final SimInfo NONE = new SimInfo(SubscriptionManager.INVALID_SUBSCRIPTION_ID, "", "", "", "", "");
+
+    public final int subId;
+    /** MCC and MNC as in the SIM operator, empty if it is too short */
+    public final String mcc, mnc;
+    /** Packed MCC/MNC, see {@link ProviderDbFormat#key}, -1 if invalid */
+    public final int operatorKey;
+    /** SPN without line breaks, trimmed */
+    public final String sp;
+    public final String imsi;
+    public final String gid1;
+    public final String gid1Lower;
+    public final String iccid;
+    private final String mSimOperator;
+    private final int mHash;
+
+    private SimInfo(int subId, String simOperator, String sp, String imsi, String gid1, String iccid) {
+        this.subId = subId;
+        mSimOperator = simOperator;
+        boolean hasOperator = simOperator.length() >= MIN_MCC_MNC_LENGTH;
+        mcc = hasOperator ? simOperator.substring(0, MCC_LENGTH) : "";
+        mnc = hasOperator ? simOperator.substring(MCC_LENGTH) : "";
+        operatorKey = ProviderDbFormat.key(mcc, mnc);
+        this.sp = sp;
+        this.imsi = imsi;
+        this.gid1 = gid1;
+        gid1Lower = gid1.toLowerCase();
+        this.iccid = iccid;
+        mHash = Objects.hash(subId, simOperator, sp, imsi, gid1, iccid);
+    }
+
+    /** Query all values of the subscription */
+    public static SimInfo capture(TelephonyManager tm, int subId) {
+        if (tm == null || subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID)
+            return NONE;
+        String spn = tm.getSimOperatorName(subId);
+        return new SimInfo(subId,
+                nonNull(tm.getSimOperator(subId)),
+                spn != null ? spn.replaceAll("[\n\r]", "").trim() : "",
+                nonNull(tm.getSubscriberId(subId)),
+                nonNull(tm.getGroupIdLevel1(subId)),
+                nonNull(tm.getSimSerialNumber(subId)));
+    }
+
+    /** Query all values of the default subscription, see {@link CommonUtil#getDefaultSubId} */
+    public static SimInfo capture(Context context) {
+        return capture(context.getSystemService(TelephonyManager.class), CommonUtil.getDefaultSubId(context));
+    }
+
+    private static String nonNull(String s) {
+        return s != null ? s : "";
+    }
+
+    /** Whether operator and IMSI are known, i.e. the SIM can be matched against the providers */
+    public boolean isValid() {
+        return !TextUtils.isEmpty(mSimOperator) && !TextUtils.isEmpty(imsi);
+    }
+
+    /** Whether operator, IMSI and ICCID are known */
+    public boolean isMandatoryAvailable() {
+        return isValid() && !TextUtils.isEmpty(iccid);
+    }
+
+    public String getSimOperator() {
+        return mSimOperator;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof SimInfo))
+            return false;
+        SimInfo other = (SimInfo) o;
+        return mHash == other.mHash && subId == other.subId && mSimOperator.equals(other.mSimOperator)
+                && sp.equals(other.sp) && imsi.equals(other.imsi) && gid1.equals(other.gid1) && iccid.equals(other.iccid);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return "SimInfo{sub=" + subId + ", mcc=" + mcc + ", mnc=" + mnc + ", sp=" + sp + ", imsi=" + imsi
+                + ", gid1=" + gid1 + ", iccid=" + iccid + "}";
+    }
+}
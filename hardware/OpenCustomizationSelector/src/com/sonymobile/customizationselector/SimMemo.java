@@ -0,0 +1,139 @@
+package com.sonymobile.customizationselector;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.PersistableBundle;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Persistent memo of carrier bundles by SIM identity.
+ * <p>
+ * The key is a hash of ICCID, IMSI, SPN and GID1 together with everything else the result depends on:
+ * the provider database version, the build fingerprint, the modem config catalog (a separately flashed OEM image)
+ * and the IMS setting.
+ * So a hit is always what a full evaluation would return. Stored in device protected storage,
+ * only the most recent {@link #MAX_ENTRIES} SIMs are kept.
+ */
+final class SimMemo {
+
+    private static final String TAG = "SimMemo";
+    private static final String PREF_FILE = "CS_memo";
+    private static final int MAX_ENTRIES = 8;
+    private static final String SEPARATOR = "\n";
+
+    // Slots may be evaluated concurrently, see SlotEvaluator
+    private static final Object sLock = new Object();
+
+    private final SharedPreferences mPrefs;
+
+    SimMemo(Context context) {
+        mPrefs = context.createDeviceProtectedStorageContext().getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Build the key for a SIM.
+     *
+     * @param dbVersion    see {@link com.sonymobile.customizationselector.Parser.ProviderDatabase#getVersion(Context)}
+     * @param modemVersion see {@link com.sonymobile.customizationselector.Parser.ModemConfParser#getVersion()}
+     */
+    static String createKey(String iccid, String imsi, String spn, String gid1, String dbVersion, String modemVersion,
+                            boolean imsEnabled) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String value : new String[]{iccid, imsi, spn, gid1, dbVersion, Build.FINGERPRINT, modemVersion,
+                    String.valueOf(imsEnabled)}) {
+                if (value != null)
+                    digest.update(value.getBytes(StandardCharsets.UTF_8));
+                // Separate the fields so shifting characters between them gives a different key
+                digest.update((byte) 0);
+            }
+            byte[] hash = digest.digest();
+            StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++)
+                sb.append(String.format("%02x", hash[i] & 0xFF));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            CSLog.e(TAG, "No SHA-256", e);
+            return null;
+        }
+    }
+
+    /** Returns the memoized bundle, null if the SIM was not seen with this key yet */
+    PersistableBundle get(String key) {
+        synchronized (sLock) {
+            return getLocked(key);
+        }
+    }
+
+    private PersistableBundle getLocked(String key) {
+        String value = mPrefs.getString(key, null);
+        if (value == null)
+            return null;
+        String[] parts = value.split(SEPARATOR, -1);
+        if (parts.length != 4) {
+            mPrefs.edit().remove(key).apply();
+            return null;
+        }
+        PersistableBundle bundle = new PersistableBundle(3);
+        bundle.putString(Configurator.KEY_SIM_ID, parts[1]);
+        bundle.putString(Configurator.KEY_MODEM, parts[2]);
+        bundle.putString(Configurator.KEY_CONFIG_ID, parts[3]);
+        // Refresh the time so often used SIMs are not evicted, only needed if another entry is more recent
+        if (!isMostRecent(key, parseTime(value)))
+            putLocked(key, bundle);
+        CSLog.d(TAG, "Hit for {}", key);
+        return bundle;
+    }
+
+    void put(String key, PersistableBundle bundle) {
+        synchronized (sLock) {
+            putLocked(key, bundle);
+        }
+    }
+
+    private void putLocked(String key, PersistableBundle bundle) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        Map<String, ?> entries = mPrefs.getAll();
+        if (!entries.containsKey(key) && entries.size() >= MAX_ENTRIES) {
+            String oldestKey = null;
+            long oldestTime = Long.MAX_VALUE;
+            for (Map.Entry<String, ?> entry : entries.entrySet()) {
+                long time = parseTime(entry.getValue());
+                if (time < oldestTime) {
+                    oldestTime = time;
+                    oldestKey = entry.getKey();
+                }
+            }
+            editor.remove(oldestKey);
+        }
+        editor.putString(key, System.currentTimeMillis() + SEPARATOR + bundle.getString(Configurator.KEY_SIM_ID, "")
+                + SEPARATOR + bundle.getString(Configurator.KEY_MODEM, "")
+                + SEPARATOR + bundle.getString(Configurator.KEY_CONFIG_ID, ""));
+        editor.apply();
+    }
+
+    private boolean isMostRecent(String key, long time) {
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (!entry.getKey().equals(key) && parseTime(entry.getValue()) >= time)
+                return false;
+        }
+        return true;
+    }
+
+    private static long parseTime(Object value) {
+        if (!(value instanceof String))
+            return 0;
+        String s = (String) value;
+        int end = s.indexOf(SEPARATOR);
+        try {
+            return Long.parseLong(end < 0 ? s : s.substring(0, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.sonymobile.customizationselector;
+
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Evaluates the carrier bundle of every active subscription in parallel and keeps the results per SIM slot.
+ * <p>
+ * When the default data SIM is switched on a DSDS device the result of the new slot is then already known.
+ * A result is only handed out while the slot holds the same SIM and the provider database and IMS setting are unchanged.
+ */
+final class SlotEvaluator {
+
+    private static final String TAG = "SlotEvaluator";
+
+    // One thread per slot, no DSDS device has more than 2
+    private static final int THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private static final SparseArray<Result> sResults = new SparseArray<>();
+
+    private static final class Result {
+        final SimInfo simInfo;
+        final String stamp;
+        final PersistableBundle bundle;
+
+        Result(SimInfo simInfo, String stamp, PersistableBundle bundle) {
+            this.simInfo = simInfo;
+            this.stamp = stamp;
+            this.bundle = bundle;
+        }
+    }
+
+    private SlotEvaluator() {
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "CS-Slot"));
+        // Idle almost always, do not keep the threads around
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Evaluate all active subscriptions and replace the stored results.
+     * Blocks until all are done, so call it from a background thread.
+     * Once the token is cancelled the remaining slots are aborted and the stored results are kept.
+     *
+     * @param simInfo the SIM just evaluated, its bundle is stored as is
+     */
+    static void evaluateAll(Context context, SimInfo simInfo, PersistableBundle bundle, CancellationToken token) {
+        SubscriptionManager subscriptionManager = context.getSystemService(SubscriptionManager.class);
+        TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        List<SubscriptionInfo> subscriptions = subscriptionManager != null ? subscriptionManager.getActiveSubscriptionInfoList() : null;
+        if (subscriptions == null || tm == null)
+            return;
+
+        String stamp = CommonUtil.getEvaluationStamp(context);
+        List<Integer> slots = new ArrayList<>();
+        List<Future<Result>> futures = new ArrayList<>();
+        SparseArray<Result> results = new SparseArray<>();
+        for (SubscriptionInfo subscription : subscriptions) {
+            int subId = subscription.getSubscriptionId();
+            if (!SubscriptionManager.isUsableSubIdValue(subId))
+                continue;
+            if (subId == simInfo.subId && simInfo.isValid()) {
+                results.put(subscription.getSimSlotIndex(), new Result(simInfo, stamp, new PersistableBundle(bundle)));
+                continue;
+            }
+            slots.add(subscription.getSimSlotIndex());
+            futures.add(EXECUTOR.submit(() -> {
+                SimInfo slotSimInfo = SimInfo.capture(tm, subId);
+                if (!slotSimInfo.isValid())
+                    return null;
+                return new Result(slotSimInfo, stamp, CommonUtil.getCarrierBundle(context, slotSimInfo, token));
+            }));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            if (token.isCancelled())
+                break;
+            try {
+                Result result = futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (result != null) {
+                    results.put(slots.get(i), result);
+                    CSLog.d(TAG, "Slot {}: {}", slots.get(i), result.bundle);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                futures.get(i).cancel(true);
+                // A slot aborted by the token, handled below
+                if (token.isCancelled())
+                    break;
+                CSLog.e(TAG, "Evaluation of slot " + slots.get(i) + " failed", e);
+            }
+        }
+        if (token.isCancelled()) {
+            for (Future<Result> future : futures)
+                future.cancel(true);
+            CSLog.d(TAG, "Cancelled, stored results kept");
+            return;
+        }
+        // Replace everything, slots without a (valid) SIM must not keep an old result
+        synchronized (sResults) {
+            sResults.clear();
+            for (int i = 0; i < results.size(); i++)
+                sResults.put(results.keyAt(i), results.valueAt(i));
+        }
+    }
+
+    /** Returns the stored bundle for the SIM, null if there is none or it is outdated */
+    static PersistableBundle get(Context context, SimInfo simInfo) {
+        if (!simInfo.isValid())
+            return null;
+        int slot = SubscriptionManager.getSlotIndex(simInfo.subId);
+        Result result;
+        synchronized (sResults) {
+            result = sResults.get(slot);
+        }
+        if (result == null || !result.simInfo.equals(simInfo) || !result.stamp.equals(CommonUtil.getEvaluationStamp(context)))
+            return null;
+        CSLog.d(TAG, "Using result of slot {}", slot);
+        return new PersistableBundle(result.bundle);
+    }
+}
@@ -18,14 +18,22 @@ public class StatusActivity extends Activity {
         TextView reportText = findViewById(R.id.m_report_text);
         TextView statusText = findViewById(R.id.m_status_text);
 
-        File reportFile = new File(ModemSwitcher.MODEM_REPORT_FILE);
-        File statusFile = new File(ModemSwitcher.MODEM_STATUS_FILE);
-
-        reportText.setText(reportFile.exists() ? readFile(reportFile) : getString(R.string.file_not_found));
-        statusText.setText(statusFile.exists() ? readFile(statusFile) : getString(R.string.file_not_found));
+        String notFound = getString(R.string.file_not_found);
+        BackgroundThread.execute(() -> new String[]{readFile(ModemSwitcher.MODEM_REPORT_FILE, notFound),
+                readFile(ModemSwitcher.MODEM_STATUS_FILE, notFound)}, texts -> {
+            if (texts == null)
+                return;
+            reportText.setText(texts[0]);
+            statusText.setText(texts[1]);
+        });
+
+        findViewById(R.id.status_export).setOnClickListener(v -> DiagnosticsExporter.exportAndShare(this, v));
     }
 
-    private String readFile(File file) {
+    private static String readFile(String path, String notFound) {
+        File file = new File(path);
+        if (!file.exists())
+            return notFound;
         StringBuilder data = new StringBuilder();
         try {
             BufferedReader reader = new BufferedReader(new FileReader(file));
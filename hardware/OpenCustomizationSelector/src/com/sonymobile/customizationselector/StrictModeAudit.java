@@ -0,0 +1,67 @@
+package com.sonymobile.customizationselector;
+
+import android.os.Build;
+import android.os.StrictMode;
+import android.os.strictmode.Violation;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * StrictMode in audit mode for debuggable builds: violations are only written to the CS log, once per
+ * stack signature, so work on the main thread shows up in the log without crashing the app.
+ */
+final class StrictModeAudit {
+
+    private static final String TAG = "StrictModeAudit";
+
+    private static final String PACKAGE = "com.sonymobile.customizationselector";
+    private static final int MAX_FRAMES = 16;
+
+    private static final Set<String> sReported = ConcurrentHashMap.newKeySet();
+
+    private StrictModeAudit() {
+    }
+
+    /** Enable detection for the calling (main) thread and the VM, does nothing on user builds */
+    static void install() {
+        if (!Build.IS_DEBUGGABLE)
+            return;
+        Executor executor = BackgroundThread::post;
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectAll()
+                .penaltyListener(executor, StrictModeAudit::report)
+                .build());
+        StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                .detectAll()
+                .penaltyListener(executor, StrictModeAudit::report)
+                .build());
+        CSLog.i(TAG, "StrictMode audit enabled");
+    }
+
+    private static void report(Violation violation) {
+        StackTraceElement[] stack = violation.getStackTrace();
+        String signature = signature(violation, stack);
+        if (!sReported.add(signature))
+            return;
+        StringBuilder msg = new StringBuilder(violation.getClass().getSimpleName())
+                .append(" [").append(signature).append(']');
+        if (violation.getMessage() != null)
+            msg.append(": ").append(violation.getMessage());
+        for (int i = 0; i < stack.length && i < MAX_FRAMES; i++)
+            msg.append("\n    at ").append(stack[i]);
+        CSLog.w(TAG, msg.toString());
+    }
+
+    /** Hash of the violation type and the frames of the app, the same call path has the same signature */
+    private static String signature(Violation violation, StackTraceElement[] stack) {
+        int hash = violation.getClass().getName().hashCode();
+        for (StackTraceElement frame : stack) {
+            if (frame.getClassName().startsWith(PACKAGE))
+                hash = 31 * hash + frame.hashCode();
+        }
+        return String.format(Locale.ROOT, "%08x", hash);
+    }
+}
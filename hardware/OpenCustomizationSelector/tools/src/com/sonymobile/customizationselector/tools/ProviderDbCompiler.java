@@ -0,0 +1,248 @@
+package com.sonymobile.customizationselector.tools;
+
+import com.sonymobile.customizationselector.Parser.ProviderDbFormat;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static com.sonymobile.customizationselector.Parser.XmlConstants.*;
+
+/**
+ * Host tool compiling service_providers.xml and configuration_selectors.xml into the binary
+ * provider database described in {@link ProviderDbFormat}.
+ * <p>
+ * Usage: ProviderDbCompiler service_providers.xml configuration_selectors.xml out.db
+ * <p>
+ * Reads the XML like ServiceProvidersParser and DynamicConfigParser do at runtime and fails
+ * the build on invalid patterns.
+ */
+public final class ProviderDbCompiler {
+
+    private static final class Provider {
+        String simConfigId, mcc, mnc, sp, imsi, gid1, gid2;
+        int key;
+    }
+
+    private final ByteArrayOutputStream mPool = new ByteArrayOutputStream();
+    private final Map<String, Integer> mPoolOffsets = new HashMap<>();
+    private int mErrors = 0;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: ProviderDbCompiler service_providers.xml configuration_selectors.xml out.db");
+            System.exit(1);
+        }
+        ProviderDbCompiler compiler = new ProviderDbCompiler();
+        List<Provider> providers = compiler.readProviders(new File(args[0]));
+        Map<String, String> configs = compiler.readConfigurations(new File(args[1]));
+        if (compiler.mErrors > 0) {
+            System.err.println(compiler.mErrors + " error(s), no database written");
+            System.exit(1);
+        }
+        try (OutputStream out = new FileOutputStream(args[2])) {
+            compiler.write(providers, configs, out);
+        }
+    }
+
+    private static Document parse(File file) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+    }
+
+    private static String fix(String s) {
+        if (s == null || s.isEmpty())
+            return "";
+        return s.replace("\n", "").replace("\t", "").trim();
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private void error(String message) {
+        System.err.println("error: " + message);
+        mErrors++;
+    }
+
+    private List<Provider> readProviders(File file) throws Exception {
+        List<Provider> providers = new ArrayList<>();
+        NodeList elements = parse(file).getElementsByTagName("*");
+        Provider provider = null;
+        // Same semantics as the pull parser: value tags belong to the last started sim config
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            String tag = element.getTagName();
+            if (SERVICE_PROVIDER_SIM_CONFIG.equals(tag)) {
+                String id = fix(element.getAttribute(SIM_CONFIG_ID));
+                if (!id.isEmpty()) {
+                    provider = new Provider();
+                    provider.simConfigId = id;
+                    providers.add(provider);
+                }
+            }
+            if (provider == null)
+                continue;
+            String value = emptyToNull(fix(element.getTextContent()));
+            if (value == null)
+                continue;
+            if (MCC.equalsIgnoreCase(tag))
+                provider.mcc = value;
+            else if (MNC.equalsIgnoreCase(tag))
+                provider.mnc = value;
+            else if (SP.equalsIgnoreCase(tag))
+                provider.sp = value;
+            else if (IMSI.equalsIgnoreCase(tag))
+                provider.imsi = value;
+            else if (GID1.equalsIgnoreCase(tag))
+                provider.gid1 = value;
+            else if (GID2.equalsIgnoreCase(tag))
+                provider.gid2 = value;
+        }
+
+        List<Provider> valid = new ArrayList<>();
+        for (Provider p : providers) {
+            p.key = ProviderDbFormat.key(p.mcc, p.mnc);
+            if (p.key < 0) {
+                // Can never match at runtime
+                System.err.println("warning: " + p.simConfigId + " skipped, invalid mcc/mnc " + p.mcc + "/" + p.mnc);
+                continue;
+            }
+            if (p.sp != null && !NULL_VALUE.equalsIgnoreCase(p.sp))
+                checkPattern(p.simConfigId, SP, p.sp);
+            if (p.imsi != null)
+                checkPattern(p.simConfigId, IMSI, p.imsi);
+            valid.add(p);
+        }
+        // Stable, so the parse order is kept within an operator
+        valid.sort((a, b) -> Integer.compare(a.key, b.key));
+        return valid;
+    }
+
+    private void checkPattern(String id, String field, String pattern) {
+        try {
+            Pattern.compile(pattern);
+        } catch (PatternSyntaxException e) {
+            error(id + ": invalid " + field + " pattern " + e.getMessage());
+        }
+    }
+
+    private Map<String, String> readConfigurations(File file) throws Exception {
+        Map<String, String> configs = new LinkedHashMap<>();
+        NodeList elements = parse(file).getElementsByTagName("*");
+        String configId = "";
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            String tag = element.getTagName();
+            if (CONFIGURATION.equals(tag))
+                configId = fix(element.getAttribute(CONFIG_ID));
+            // The first mapping wins, as in DynamicConfigParser
+            if (SIM_CONFIG_ID.equalsIgnoreCase(tag) && !configId.isEmpty())
+                configs.putIfAbsent(fix(element.getTextContent()), configId);
+            if (ANY_SIM.equalsIgnoreCase(tag) && !configId.isEmpty())
+                configs.putIfAbsent(ANY_SIM, configId);
+        }
+        return configs;
+    }
+
+    private int intern(String s) {
+        if (s == null)
+            return ProviderDbFormat.NO_STRING;
+        Integer offset = mPoolOffsets.get(s);
+        if (offset != null)
+            return offset;
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF)
+            throw new IllegalArgumentException("String too long: " + s.substring(0, 32));
+        offset = mPool.size();
+        mPool.write(bytes.length >>> 8);
+        mPool.write(bytes.length);
+        mPool.write(bytes, 0, bytes.length);
+        mPoolOffsets.put(s, offset);
+        return offset;
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return a.length - b.length;
+    }
+
+    /** Same digest as ProviderDatabase computes from the parsed resources, see {@link ProviderDbFormat#DIGEST_SEED} */
+    private static long digest(List<Provider> providers, Map<String, String> configs) {
+        long hash = ProviderDbFormat.DIGEST_SEED;
+        for (Provider p : providers) {
+            hash = ProviderDbFormat.digest(hash, p.key);
+            hash = ProviderDbFormat.digest(hash, p.simConfigId);
+            hash = ProviderDbFormat.digest(hash, p.sp);
+            hash = ProviderDbFormat.digest(hash, p.imsi);
+            hash = ProviderDbFormat.digest(hash, p.gid1);
+            hash = ProviderDbFormat.digest(hash, p.gid2);
+        }
+        for (Map.Entry<String, String> config : new TreeMap<>(configs).entrySet()) {
+            hash = ProviderDbFormat.digest(hash, config.getKey());
+            hash = ProviderDbFormat.digest(hash, config.getValue());
+        }
+        return hash;
+    }
+
+    private void write(List<Provider> providers, Map<String, String> configs, OutputStream output) throws IOException {
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(tables);
+        for (Provider p : providers) {
+            out.writeInt(p.key);
+            out.writeInt(intern(p.simConfigId));
+            out.writeInt(intern(p.sp));
+            out.writeInt(intern(p.imsi));
+            out.writeInt(intern(p.gid1));
+            out.writeInt(intern(p.gid2));
+        }
+        List<String> simIds = new ArrayList<>(configs.keySet());
+        simIds.sort((a, b) -> compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8)));
+        for (String simId : simIds) {
+            out.writeInt(intern(simId));
+            out.writeInt(intern(configs.get(simId)));
+        }
+        out.flush();
+
+        int providersOffset = ProviderDbFormat.HEADER_SIZE;
+        int configsOffset = providersOffset + providers.size() * ProviderDbFormat.PROVIDER_SIZE;
+        int stringsOffset = configsOffset + simIds.size() * ProviderDbFormat.CONFIG_SIZE;
+        DataOutputStream header = new DataOutputStream(output);
+        header.writeInt(ProviderDbFormat.MAGIC);
+        header.writeInt(ProviderDbFormat.VERSION);
+        header.writeInt(providers.size());
+        header.writeInt(simIds.size());
+        header.writeInt(providersOffset);
+        header.writeInt(configsOffset);
+        header.writeInt(stringsOffset);
+        header.writeInt(mPool.size());
+        header.writeLong(digest(providers, configs));
+        tables.writeTo(header);
+        mPool.writeTo(header);
+        header.flush();
+        if (providers.isEmpty())
+            System.err.println("warning: no providers, the app will use its resources instead");
+        System.out.println("Compiled " + providers.size() + " providers, " + simIds.size() + " configurations, "
+                + mPool.size() + " bytes of strings");
+    }
+}